@@ -2,18 +2,54 @@ package kdp.jobcontrol;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.apache.hadoop.util.StringUtils;
 
 public abstract class Controlled {
 
   public static enum State {
-    SUCCESS, WAITING, RUNNING, READY, FAILED, DEPENDENT_FAILED
+    SUCCESS, WAITING, RUNNING, READY, FAILED, DEPENDENT_FAILED, SKIPPED
+  }
+
+  /**
+   * A condition on a dependency, checked once the depending job has
+   * succeeded. The job is skipped if it is not met.
+   */
+  public interface Condition {
+    /**
+     * @param dependingJob
+     *          the job depended on, which has succeeded
+     * @return true if the job depending on it should run
+     */
+    boolean isMet(Controlled dependingJob) throws IOException;
   }
 
-  protected State state;
+  private static final AtomicReferenceFieldUpdater<Controlled, State> STATE =
+      AtomicReferenceFieldUpdater.newUpdater(Controlled.class, State.class,
+          "state");
+
+  protected volatile State state;
   protected String controlID;
   protected String message;
   protected List<Controlled> dependingJobs;
+  private Map<Controlled, Condition> conditions;
+  private int weight = 1;
+  private ResourcePool resourcePool;
+  private int priority;
+  private long costHint;
+  private String key;
+  private RetryPolicy retryPolicy;
+  private Throwable failureCause;
+  private int failedAttempts;
+  private volatile long retryAt;
+  private long timeoutMillis;
+  private long progressTimeoutMillis;
+  // groups with jobs waiting on this one from outside its own group
+  private List<JobControl> watchers;
 
   public Controlled() {
     super();
@@ -26,6 +62,35 @@ public abstract class Controlled {
     return this.getClass().getName() + getJobID();
   }
   
+  /**
+   * @return the key identifying this job from one run of its workflow to the
+   *         next, as set or else derived from what the job does, or null if
+   *         it has none
+   */
+  public String getKey() {
+    return this.key != null ? this.key : getDefaultKey();
+  }
+
+  /**
+   * Set the key identifying this job from one run of its workflow to the
+   * next. It must be unique within the workflow.
+   * 
+   * @param key
+   *          the key of this job
+   */
+  public void setKey(String key) {
+    this.key = key;
+  }
+
+  /**
+   * @return the key used when none is set, or null by default: the ID given
+   *         to the job by its group changes from one run to the next, so
+   *         such jobs must be given a key to be journaled
+   */
+  protected String getDefaultKey() {
+    return null;
+  }
+
   /**
    * @return the job ID of this job assigned by JobControl
    */
@@ -44,9 +109,10 @@ public abstract class Controlled {
   }
 
   /**
-   * @return the state of this job
+   * @return the state of this job, without waiting for a submission or state
+   *         check in progress to finish
    */
-  public synchronized State getJobState() {
+  public State getJobState() {
     return this.state;
   }
 
@@ -60,6 +126,20 @@ public abstract class Controlled {
     this.state = state;
   }
 
+  /**
+   * Atomically set the state for this job if it is still in the expected
+   * state.
+   * 
+   * @param expect
+   *          the state the job must be in
+   * @param update
+   *          the new state for this job
+   * @return <tt>true</tt> if the state was changed
+   */
+  protected boolean compareAndSetJobState(State expect, State update) {
+    return STATE.compareAndSet(this, expect, update);
+  }
+
   /**
    * @return the message of this job
    */
@@ -77,6 +157,220 @@ public abstract class Controlled {
     this.message = message;
   }
 
+  /**
+   * @return the share of its group's and pool's limits this job takes up
+   *         while it runs
+   */
+  public int getWeight() {
+    return this.weight;
+  }
+
+  /**
+   * Set the weight of this job, typically the number of slots it is expected
+   * to take. Each job counts as one by default.
+   * 
+   * @param weight
+   *          the weight of this job
+   */
+  public void setWeight(int weight) {
+    this.weight = weight;
+  }
+
+  /**
+   * @return the pool this job must be admitted by, or null to use the pool of
+   *         its group
+   */
+  public ResourcePool getResourcePool() {
+    return this.resourcePool;
+  }
+
+  /**
+   * Require this job to be admitted by the given pool before it is submitted.
+   * 
+   * @param pool
+   *          the pool limiting the jobs running at once
+   */
+  public void setResourcePool(ResourcePool pool) {
+    this.resourcePool = pool;
+  }
+
+  /**
+   * @return the explicit priority of this job
+   */
+  public int getPriority() {
+    return this.priority;
+  }
+
+  /**
+   * Set an explicit priority for this job. Ready jobs with a higher priority
+   * are submitted first; among jobs with the same priority, by default zero,
+   * those on the longest remaining path through the group go first.
+   * 
+   * @param priority
+   *          the priority of this job
+   */
+  public void setPriority(int priority) {
+    this.priority = priority;
+  }
+
+  /**
+   * @return the expected cost of this job, or 0 if unknown
+   */
+  public long getCostHint() {
+    return this.costHint;
+  }
+
+  /**
+   * Set the expected cost of this job, typically its expected run time in
+   * milliseconds, used to find the longest path through its group. Jobs
+   * without a hint all count the same.
+   * 
+   * @param cost
+   *          the expected cost of this job
+   */
+  public void setCostHint(long cost) {
+    this.costHint = cost;
+  }
+
+  /**
+   * @return the policy for retrying this job, or null if it is never retried
+   */
+  public RetryPolicy getRetryPolicy() {
+    return this.retryPolicy;
+  }
+
+  /**
+   * Retry this job after transient failures, as the given policy allows.
+   * 
+   * @param policy
+   *          the retry policy, or null to fail on the first error
+   */
+  public void setRetryPolicy(RetryPolicy policy) {
+    this.retryPolicy = policy;
+  }
+
+  /**
+   * @return the exception the last attempt failed with, or null if there was
+   *         none
+   */
+  public synchronized Throwable getFailureCause() {
+    return this.failureCause;
+  }
+
+  protected synchronized void setFailureCause(Throwable cause) {
+    this.failureCause = cause;
+  }
+
+  /**
+   * @return the number of times this job was submitted and failed
+   */
+  public synchronized int getFailedAttempts() {
+    return this.failedAttempts;
+  }
+
+  synchronized int incrementFailedAttempts() {
+    return ++this.failedAttempts;
+  }
+
+  /**
+   * @return the time before which this job is neither submitted nor polled,
+   *         while backing off after a failure
+   */
+  long getRetryAt() {
+    return this.retryAt;
+  }
+
+  protected void setRetryAt(long retryAt) {
+    this.retryAt = retryAt;
+  }
+
+  /**
+   * Get ready to be submitted again after a failed attempt. Called on the
+   * submitting thread, before {@link #submit()}.
+   */
+  protected void prepareRetry() throws IOException {
+  }
+
+  /**
+   * @return the longest time this job may run, or 0 for no limit
+   */
+  public long getTimeoutMillis() {
+    return this.timeoutMillis;
+  }
+
+  /**
+   * Kill this job if it runs for longer than the given time. It then fails,
+   * or is retried if its retry policy allows.
+   * 
+   * @param timeoutMillis
+   *          the longest time this job may run, or 0 for no limit
+   */
+  public void setTimeoutMillis(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * @return the longest time this job may run without progress, or 0 for no
+   *         limit
+   */
+  public long getProgressTimeoutMillis() {
+    return this.progressTimeoutMillis;
+  }
+
+  /**
+   * Kill this job if its progress does not advance for the given time. It
+   * then fails, or is retried if its retry policy allows. Jobs that do not
+   * report their progress are never killed for lack of it.
+   * 
+   * @param timeoutMillis
+   *          the longest time without progress, or 0 for no limit
+   */
+  public void setProgressTimeoutMillis(long timeoutMillis) {
+    this.progressTimeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * @return the progress of this running job, between 0 and 1, or a
+   *         negative value if it is not known
+   */
+  protected float getProgress() throws IOException {
+    return -1;
+  }
+
+  /**
+   * Have a group woken when this job completes, as some of its jobs depend
+   * on this one.
+   */
+  synchronized void addWatcher(JobControl group) {
+    if (this.watchers == null) {
+      this.watchers = new ArrayList<JobControl>();
+    }
+    if (!this.watchers.contains(group)) {
+      this.watchers.add(group);
+    }
+  }
+
+  /**
+   * Stop waking a group that has since taken this job in as its own.
+   */
+  synchronized void removeWatcher(JobControl group) {
+    if (this.watchers != null) {
+      this.watchers.remove(group);
+      if (this.watchers.isEmpty()) {
+        this.watchers = null;
+      }
+    }
+  }
+
+  /**
+   * @return the groups to wake now that this job has completed
+   */
+  synchronized List<JobControl> takeWatchers() {
+    List<JobControl> retv = this.watchers;
+    this.watchers = null;
+    return retv;
+  }
+
   /**
    * @return the depending jobs of this job
    */
@@ -103,18 +397,105 @@ public abstract class Controlled {
     }
   }
 
+  /**
+   * Add a job to this jobs' dependency list, running this job only if the
+   * condition holds once it has succeeded. Otherwise this job is SKIPPED
+   * without being submitted, and so are the jobs that depend on nothing but
+   * skipped jobs.
+   * 
+   * @param dependingJob
+   *          Job that this Job depends on.
+   * @param condition
+   *          whether to run this job, given the depending job
+   * @return <tt>true</tt> if the Job was added.
+   */
+  public synchronized boolean addDependingJob(Controlled dependingJob,
+      Condition condition) {
+    if (!addDependingJob(dependingJob)) {
+      return false;
+    }
+    if (this.conditions == null) {
+      this.conditions = new HashMap<Controlled, Condition>();
+    }
+    this.conditions.put(dependingJob, condition);
+    return true;
+  }
+
+  /**
+   * Decide what becomes of this job once all its depending jobs have
+   * succeeded or been skipped. It is skipped if they all were skipped, or if
+   * the condition on one of them is not met, and fails if a condition could
+   * not be checked. The message is set to match.
+   * 
+   * @return READY, SKIPPED or FAILED
+   */
+  synchronized State checkConditions() {
+    if (this.dependingJobs == null || this.dependingJobs.isEmpty()) {
+      return State.READY;
+    }
+    boolean allSkipped = true;
+    for (Controlled pred : this.dependingJobs) {
+      if (pred.getJobState() != State.SKIPPED) {
+        allSkipped = false;
+      }
+    }
+    if (allSkipped) {
+      this.message = "skipped, as all depending jobs were skipped";
+      return State.SKIPPED;
+    }
+    if (this.conditions == null) {
+      return State.READY;
+    }
+    for (Map.Entry<Controlled, Condition> entry : this.conditions.entrySet()) {
+      Controlled pred = entry.getKey();
+      if (pred.getJobState() != State.SUCCESS) {
+        continue; // a skipped job is not checked
+      }
+      try {
+        if (!entry.getValue().isMet(pred)) {
+          this.message = "skipped, as the condition on depending job "
+              + "with jobID " + pred.getJobID() + " was not met";
+          return State.SKIPPED;
+        }
+      } catch (IOException e) {
+        return conditionFailed(pred, e);
+      } catch (RuntimeException e) {
+        // user code: fail this job only, not the pass over the group
+        return conditionFailed(pred, e);
+      }
+    }
+    return State.READY;
+  }
+
+  private State conditionFailed(Controlled pred, Exception e) {
+    this.message = "could not check the condition on depending job "
+        + "with jobID " + pred.getJobID() + ". "
+        + StringUtils.stringifyException(e);
+    return State.FAILED;
+  }
+
   /**
    * @return true if this job is in a complete state
    */
-  public synchronized boolean isCompleted() {
-    return this.state == State.FAILED || this.state == State.DEPENDENT_FAILED
-        || this.state == State.SUCCESS;
+  public boolean isCompleted() {
+    State s = this.state;
+    return s == State.FAILED || s == State.DEPENDENT_FAILED
+        || s == State.SUCCESS || s == State.SKIPPED;
+  }
+
+  /**
+   * @return true if this job succeeded or was skipped, either of which lets
+   *         the jobs depending on it go ahead
+   */
+  public boolean isSuccessful() {
+    State s = this.state;
+    return s == State.SUCCESS || s == State.SKIPPED;
   }
 
   /**
    * @return true if this job is in READY state
    */
-  public synchronized boolean isReady() {
+  public boolean isReady() {
     return this.state == State.READY;
   }
 
@@ -149,9 +530,9 @@ public abstract class Controlled {
                 + " failed. " + pred.getMessage();
             break;
           }
-          // pred must be in success state
+          // pred must be in success or skipped state
           if (i == n - 1) {
-            this.state = State.READY;
+            this.state = checkConditions();
           }
         }
       
@@ -1,14 +1,43 @@
 package kdp.jobcontrol;
 
 import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.util.StringUtils;
 
+/**
+ * A file system operation run as a job. Actions are executed on a bounded
+ * I/O pool shared by all groups, never on the threads driving the groups,
+ * so a long recursive delete does not hold up status checks and
+ * submissions. The action stays RUNNING until its execution completes.
+ * At most a few actions run against the same file system at once, to keep
+ * bursts of metadata operations off the namenode.
+ */
 public abstract class ControlledFSAction extends Controlled {
   protected FileSystem fs;
 
-  
+  private static int ioThreads = 8;
+  private static int maxOperationsPerFileSystem = 4;
+  private static ThreadPoolExecutor ioPool;
+  private static final Map<URI, Semaphore> FS_LIMITS =
+      new ConcurrentHashMap<URI, Semaphore>();
+
+  private volatile Future<?> execution;
+  private volatile JobControl group;
+
+
   public ControlledFSAction(FileSystem fs) {
     super();
     this.fs = fs;
@@ -18,30 +47,146 @@ public abstract class ControlledFSAction extends Controlled {
     this.fs = FileSystem.get(conf);
   }
 
+  /**
+   * Set the number of file system actions executed at once, across all
+   * groups.
+   *
+   * @param threads the size of the shared I/O pool
+   */
+  public static synchronized void setIOThreads(int threads) {
+    ioThreads = threads;
+    if (ioPool != null) {
+      if (threads > ioPool.getMaximumPoolSize()) {
+        ioPool.setMaximumPoolSize(threads);
+        ioPool.setCorePoolSize(threads);
+      } else {
+        ioPool.setCorePoolSize(threads);
+        ioPool.setMaximumPoolSize(threads);
+      }
+    }
+  }
+
+  /**
+   * Set the number of actions run at once against any one file system. Only
+   * file systems not yet used by an action are affected.
+   *
+   * @param limit the maximum concurrent operations per file system
+   */
+  public static synchronized void setMaxOperationsPerFileSystem(int limit) {
+    maxOperationsPerFileSystem = limit;
+  }
+
+  private static synchronized ThreadPoolExecutor getIOPool() {
+    if (ioPool == null) {
+      ioPool = new ThreadPoolExecutor(ioThreads, ioThreads, 60,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new DaemonThreadFactory("ControlledFSAction"));
+      ioPool.allowCoreThreadTimeOut(true);
+    }
+    return ioPool;
+  }
+
+  private static synchronized Semaphore getLimit(FileSystem fs) {
+    Semaphore limit = FS_LIMITS.get(fs.getUri());
+    if (limit == null) {
+      limit = new Semaphore(maxOperationsPerFileSystem, true);
+      FS_LIMITS.put(fs.getUri(), limit);
+    }
+    return limit;
+  }
+
+  /**
+   * @return true if {@link #execute()} runs many operations at once, each
+   *         taking its own permit with {@link #acquireOperation(FileSystem)},
+   *         rather than one permit being held for the whole action
+   */
+  protected boolean isFanOut() {
+    return false;
+  }
+
+  /**
+   * Wait until another operation may run against the given file system. The
+   * permit must be given back with {@link #releaseOperation(FileSystem)}.
+   */
+  protected static void acquireOperation(FileSystem fs)
+      throws InterruptedException {
+    getLimit(fs).acquire();
+  }
+
+  protected static void releaseOperation(FileSystem fs) {
+    getLimit(fs).release();
+  }
+
+  /**
+   * Called when this action is added to a group, which is told as soon as
+   * the execution completes.
+   */
+  void setGroup(JobControl group) {
+    this.group = group;
+  }
+
   @Override
   protected void checkRunningState() throws IOException, InterruptedException {
+    Future<?> current = this.execution;
+    if (current == null || !current.isDone()) {
+      return;
+    }
     try {
-      System.out.println("Executing " + getName() + ", state is now " + state);
-      execute();
+      current.get();
       state = State.SUCCESS;
       System.out.println("Executed " + getName() + ", state is now " + state);
-    } catch (IOException e) {
+    } catch (CancellationException e) {
+      setFailureCause(e);
+      message = "killed";
+      state = State.FAILED;
+      System.out.println("Killed " + getName() + ", state is now " + state);
+    } catch (ExecutionException e) {
       System.out.println(getName() + " failed");
-      e.printStackTrace();
+      e.getCause().printStackTrace();
+      setFailureCause(e.getCause());
+      message = StringUtils.stringifyException(e.getCause());
       state = State.FAILED;
       System.out.println("Failed " + getName() + ", state is now " + state);
     }
   }
 
+  /**
+   * Interrupt the execution, if it has not completed yet.
+   */
   @Override
   public void killJob() throws IOException, InterruptedException {
-    // no-op, we've either succeeded, or failed, but running isn't an extended process
+    Future<?> current = this.execution;
+    if (current != null) {
+      current.cancel(true);
+    }
   }
 
   @Override
   protected void submit() {
     state = State.RUNNING;
     System.out.println("Submitting " + getName() + ", state is now " + state);
+    this.execution = getIOPool().submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        Semaphore limit = isFanOut() ? null : getLimit(fs);
+        if (limit != null) {
+          limit.acquire();
+        }
+        try {
+          System.out.println("Executing " + getName() + ", state is now "
+              + state);
+          execute();
+        } finally {
+          if (limit != null) {
+            limit.release();
+          }
+          JobControl current = group;
+          if (current != null) {
+            current.jobEnded(getJobID());
+          }
+        }
+        return null;
+      }
+    });
   }
 
   protected abstract void execute() throws IOException, InterruptedException;
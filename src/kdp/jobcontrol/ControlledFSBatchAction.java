@@ -0,0 +1,171 @@
+package kdp.jobcontrol;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A file system operation applied to many paths as a single job, given as a
+ * list or as a glob pattern. Paths are handled concurrently, a few at a
+ * time and within the per-file-system limit of {@link ControlledFSAction},
+ * and each failure is recorded against its path; the job fails if any path
+ * failed, once all of them have been tried.
+ *
+ * An optional batch, like {@link OptionalDelete} and {@link OptionalRename},
+ * ignores missing paths and patterns matching nothing.
+ */
+public abstract class ControlledFSBatchAction extends ControlledFSAction {
+
+  private Collection<Path> paths;
+  private Path pattern;
+  private int threads = 8;
+  private boolean optional;
+  private final Map<Path, String> failures = new LinkedHashMap<Path, String>();
+
+  public ControlledFSBatchAction(Configuration conf, Collection<Path> paths)
+      throws IOException {
+    super(conf);
+    this.paths = paths;
+  }
+
+  public ControlledFSBatchAction(FileSystem fs, Collection<Path> paths) {
+    super(fs);
+    this.paths = paths;
+  }
+
+  public ControlledFSBatchAction(Configuration conf, Path pattern)
+      throws IOException {
+    super(conf);
+    this.pattern = pattern;
+  }
+
+  public ControlledFSBatchAction(FileSystem fs, Path pattern) {
+    super(fs);
+    this.pattern = pattern;
+  }
+
+  /**
+   * @param threads the number of paths handled at once
+   */
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * @param optional whether missing paths are ignored rather than failures
+   */
+  public void setOptional(boolean optional) {
+    this.optional = optional;
+  }
+
+  public boolean isOptional() {
+    return this.optional;
+  }
+
+  /**
+   * @return the paths that failed in the last execution, with the reason
+   */
+  public synchronized Map<Path, String> getFailures() {
+    return new LinkedHashMap<Path, String>(this.failures);
+  }
+
+  /**
+   * @return the paths or pattern this batch applies to
+   */
+  protected String describe() {
+    return this.pattern != null ? this.pattern.toString() : this.paths
+        .toString();
+  }
+
+  /**
+   * Apply the operation to one path.
+   *
+   * @throws FileNotFoundException
+   *           if the path does not exist
+   */
+  protected abstract void apply(Path path) throws IOException;
+
+  /**
+   * Each path takes its own permit on the file system.
+   */
+  @Override
+  protected boolean isFanOut() {
+    return true;
+  }
+
+  @Override
+  protected void execute() throws IOException, InterruptedException {
+    synchronized (this) {
+      this.failures.clear();
+    }
+    List<Path> targets = new ArrayList<Path>();
+    if (this.pattern != null) {
+      FileStatus[] matches = fs.globStatus(this.pattern);
+      if (matches == null || matches.length == 0) {
+        if (this.optional) {
+          return;
+        }
+        throw new FileNotFoundException(this.pattern + " matches nothing");
+      }
+      for (FileStatus match : matches) {
+        targets.add(match.getPath());
+      }
+    } else {
+      targets.addAll(this.paths);
+    }
+
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (final Path path : targets) {
+      tasks.add(new Callable<Void>() {
+        public Void call() throws InterruptedException {
+          acquireOperation(fs);
+          try {
+            apply(path);
+          } catch (FileNotFoundException e) {
+            if (!optional) {
+              failed(path, path + " does not exist");
+            }
+          } catch (IOException e) {
+            failed(path, e.toString());
+          } catch (RuntimeException e) {
+            failed(path, e.toString());
+          } finally {
+            releaseOperation(fs);
+          }
+          return null;
+        }
+      });
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads),
+        new DaemonThreadFactory(getName() + " batch"));
+    try {
+      pool.invokeAll(tasks);
+    } finally {
+      pool.shutdownNow();
+    }
+
+    Map<Path, String> failed = getFailures();
+    if (!failed.isEmpty()) {
+      throw new IOException(failed.size() + " of " + targets.size()
+          + " paths failed: " + failed);
+    }
+  }
+
+  private synchronized void failed(Path path, String reason) {
+    System.out.println(getName() + " failed on " + path + ": " + reason);
+    this.failures.put(path, reason);
+  }
+
+}
@@ -0,0 +1,64 @@
+package kdp.jobcontrol;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Deletes a list of paths, or every path matching a pattern.
+ */
+public class ControlledFSBatchDelete extends ControlledFSBatchAction {
+
+  private boolean recursive;
+
+  public ControlledFSBatchDelete(Configuration conf, Collection<Path> paths,
+      boolean recursive) throws IOException {
+    super(conf, paths);
+    this.recursive = recursive;
+  }
+
+  public ControlledFSBatchDelete(FileSystem fs, Collection<Path> paths,
+      boolean recursive) {
+    super(fs, paths);
+    this.recursive = recursive;
+  }
+
+  public ControlledFSBatchDelete(Configuration conf, Path pattern,
+      boolean recursive) throws IOException {
+    super(conf, pattern);
+    this.recursive = recursive;
+  }
+
+  public ControlledFSBatchDelete(FileSystem fs, Path pattern,
+      boolean recursive) {
+    super(fs, pattern);
+    this.recursive = recursive;
+  }
+
+  @Override
+  protected String getDefaultKey() {
+    return "delete " + describe();
+  }
+
+  @Override
+  protected void execute() throws IOException, InterruptedException {
+    System.out.println("Deleting " + describe()
+        + (recursive ? " recursively" : ""));
+    super.execute();
+  }
+
+  @Override
+  protected void apply(Path path) throws IOException {
+    if (!fs.delete(path, recursive)) {
+      if (!fs.exists(path)) {
+        throw new FileNotFoundException(path.toString());
+      }
+      throw new IOException("could not delete " + path);
+    }
+  }
+
+}
@@ -0,0 +1,88 @@
+package kdp.jobcontrol;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Renames many paths: each path of a list or matching a pattern is moved
+ * into a directory under its own name, or each source of a map is renamed
+ * to its target.
+ */
+public class ControlledFSBatchRename extends ControlledFSBatchAction {
+
+  private Path toDir;
+  private Map<Path, Path> renames;
+
+  public ControlledFSBatchRename(Configuration conf, Collection<Path> paths,
+      Path toDir) throws IOException {
+    super(conf, paths);
+    this.toDir = toDir;
+  }
+
+  public ControlledFSBatchRename(FileSystem fs, Collection<Path> paths,
+      Path toDir) {
+    super(fs, paths);
+    this.toDir = toDir;
+  }
+
+  public ControlledFSBatchRename(Configuration conf, Path pattern, Path toDir)
+      throws IOException {
+    super(conf, pattern);
+    this.toDir = toDir;
+  }
+
+  public ControlledFSBatchRename(FileSystem fs, Path pattern, Path toDir) {
+    super(fs, pattern);
+    this.toDir = toDir;
+  }
+
+  /**
+   * @param renames the target of each source path
+   */
+  public ControlledFSBatchRename(Configuration conf, Map<Path, Path> renames)
+      throws IOException {
+    super(conf, renames.keySet());
+    this.renames = renames;
+  }
+
+  public ControlledFSBatchRename(FileSystem fs, Map<Path, Path> renames) {
+    super(fs, renames.keySet());
+    this.renames = renames;
+  }
+
+  @Override
+  protected String getDefaultKey() {
+    return "rename " + (renames != null ? renames.toString() : describe()
+        + " " + toDir);
+  }
+
+  @Override
+  protected void execute() throws IOException, InterruptedException {
+    if (toDir != null) {
+      System.out.println("Renaming " + describe() + " into " + toDir);
+      fs.mkdirs(toDir);
+    } else {
+      System.out.println("Renaming " + renames);
+    }
+    super.execute();
+  }
+
+  @Override
+  protected void apply(Path path) throws IOException {
+    Path to = renames != null ? renames.get(path) : new Path(toDir, path
+        .getName());
+    if (!fs.rename(path, to)) {
+      if (!fs.exists(path)) {
+        throw new FileNotFoundException(path.toString());
+      }
+      throw new IOException("could not rename " + path + " to " + to);
+    }
+  }
+
+}
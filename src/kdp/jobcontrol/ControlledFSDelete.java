@@ -34,6 +34,11 @@ public class ControlledFSDelete extends ControlledFSAction {
     this.recursive = recursive;
   }
 
+  @Override
+  protected String getDefaultKey() {
+    return "delete " + path;
+  }
+
   @Override
   protected void execute() throws IOException, InterruptedException {
     System.out.println("Deleting " + path + (recursive ? " recursively" : ""));
@@ -40,6 +40,11 @@ public class ControlledFSRename extends ControlledFSAction {
     this.to = to;
   }
 
+  @Override
+  protected String getDefaultKey() {
+    return "rename " + from + " " + to;
+  }
+
   @Override
   protected void execute() throws IOException, InterruptedException {
     System.out.println("Renaming " + from + " to " + to);
@@ -20,7 +20,9 @@ package kdp.jobcontrol;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
@@ -28,6 +30,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.JobID;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.StringUtils;
 
 /**
@@ -56,7 +59,10 @@ public class ControlledJob extends Controlled {
       this.propertyName = propertyName;
     }
     protected long getCounter() throws IOException {
-      return dependingJob.getJob().getCounters().findCounter(groupName, counterName).getValue();
+      if (dependingJob.getJobState() == State.SKIPPED) {
+        return 0; // skipped jobs count no events
+      }
+      return dependingJob.getCounterValue(groupName, counterName);
     }
     protected String getPropertyName() {
       return propertyName;
@@ -64,8 +70,21 @@ public class ControlledJob extends Controlled {
   }
 
   public static final String CREATE_DIR = "mapreduce.jobcontrol.createdir.ifnotexist";
+  public static final String FINGERPRINT_THREADS = "mapreduce.jobcontrol.fingerprint.threads";
   private Job job; // mapreduce job to be executed.
   private List<RequiredCounter> requiredCounters;
+  private String endNotificationUrl;
+  // counters of the successful run, fetched once; or recorded in a journal
+  // or fingerprint, when the job was not run again
+  private volatile CounterValues counters;
+  // configuration keys fingerprinted, or null if outputs are always rebuilt
+  private List<String> upToDateKeys;
+  private OutputFingerprint fingerprint;
+  private boolean intermediate;
+  // consecutive failed status checks
+  private int statusFailures;
+  // whether the current job reached the cluster, so any output is its own
+  private boolean launched;
 
   /**
    * Construct a job.
@@ -126,6 +145,24 @@ public class ControlledJob extends Controlled {
     return job.getJobName();
   }
 
+  /**
+   * @return the output path, which no two jobs of a workflow share, or else
+   *         the job name if it has one
+   */
+  @Override
+  protected String getDefaultKey() {
+    Job current = getJob();
+    if (current == null) {
+      return null;
+    }
+    Path output = FileOutputFormat.getOutputPath(current);
+    if (output != null) {
+      return "job " + output;
+    }
+    String name = current.getJobName();
+    return name == null || name.length() == 0 ? null : name;
+  }
+
   /**
    * @return the mapred ID of this job as assigned by the mapred framework.
    */
@@ -153,6 +190,7 @@ public class ControlledJob extends Controlled {
   /**
    * Make the value of a counter in a depending job available to this job. Note
    * that this does not add the dependency -- that must be done separately.
+   * If the depending job was skipped, the property is set to 0.
    * 
    * @param dependingJob
    *          the job that generates the counter
@@ -173,6 +211,130 @@ public class ControlledJob extends Controlled {
     }
   }
 
+  /**
+   * A condition for {@link #addDependingJob(Controlled, Condition)}, met when
+   * a counter of the depending job, which must be a ControlledJob, reached
+   * the given value.
+   * 
+   * @param groupName
+   * @param counterName
+   * @param min
+   *          the lowest value for which the job depending on it runs
+   * @return the condition
+   */
+  public static Condition counterAtLeast(final String groupName,
+      final String counterName, final long min) {
+    return new Condition() {
+      public boolean isMet(Controlled dependingJob) throws IOException {
+        return ((ControlledJob) dependingJob).getCounterValue(groupName,
+            counterName) >= min;
+      }
+    };
+  }
+
+  /**
+   * @return true if the output of this job is deleted once the jobs reading
+   *         it have succeeded
+   */
+  public boolean isIntermediate() {
+    return this.intermediate;
+  }
+
+  /**
+   * Declare the output of this job as intermediate: it is deleted in the
+   * background once every job reading it has succeeded, and kept if any of
+   * them fails.
+   * 
+   * @param intermediate
+   *          whether the output is intermediate
+   */
+  public void setIntermediate(boolean intermediate) {
+    this.intermediate = intermediate;
+  }
+
+  /**
+   * Skip this job when its output is up to date: when its input files, the
+   * given configuration keys and the job jar are the same as when it last
+   * made the output. Properties set from required counters are always
+   * included.
+   * 
+   * @param confKeys
+   *          the configuration keys the output depends on
+   */
+  public synchronized void setUpToDateCheck(String... confKeys) {
+    this.upToDateKeys = new ArrayList<String>(Arrays.asList(confKeys));
+  }
+
+  /**
+   * Set the URL Hadoop calls when this job ends, overriding any URL in the
+   * job's configuration.
+   * 
+   * @param url
+   *          the end-notification URL, or null to leave the configuration as is
+   */
+  synchronized void setEndNotificationUrl(String url) {
+    this.endNotificationUrl = url;
+  }
+
+  /**
+   * @return the key under which a counter is stored in counter maps
+   */
+  static String counterKey(String groupName, String counterName) {
+    return groupName + "\t" + counterName;
+  }
+
+  /**
+   * Use counters recorded by an earlier run of this job, instead of asking
+   * the job tracker.
+   * 
+   * @param counters
+   *          counter values keyed by {@link #counterKey(String, String)}
+   */
+  void restoreCounters(Map<String, Long> counters) {
+    this.counters = counters == null ? null : CounterValues.of(counters);
+  }
+
+  /**
+   * @return the value of a counter of this successful job, fetched from the
+   *         job tracker only once for all counters
+   */
+  public long getCounterValue(String groupName, String counterName)
+      throws IOException {
+    return getCounterValues().get(groupName, counterName);
+  }
+
+  /**
+   * @return the counters of this successful job, fetched if they were not
+   *         already when it succeeded
+   * @throws IOException if the job did not run in this process and no
+   *         counters were restored for it
+   */
+  CounterValues getCounterValues() throws IOException {
+    CounterValues current = this.counters;
+    if (current == null) {
+      synchronized (this) {
+        if (this.counters == null) {
+          if (!launched) {
+            throw new IOException("no counters for " + getName()
+                + ", which was not run");
+          }
+          this.counters = CounterValues.of(job.getCounters());
+        }
+        current = this.counters;
+      }
+    }
+    return current;
+  }
+
+  /**
+   * @return the mean of the map and reduce progress
+   */
+  @Override
+  protected float getProgress() throws IOException {
+    Job current = getJob();
+    return (current.mapProgress() + current.reduceProgress()) / 2;
+  }
+
   @Override
   public void killJob() throws IOException, InterruptedException {
     job.killJob();
@@ -185,15 +347,35 @@ public class ControlledJob extends Controlled {
   @Override
   protected void checkRunningState() throws IOException, InterruptedException {
     try {
-      if (job.isComplete()) {
+      boolean complete = job.isComplete();
+      statusFailures = 0;
+      if (complete) {
         if (job.isSuccessful()) {
+          try {
+            this.counters = CounterValues.of(job.getCounters());
+          } catch (IOException e) {
+            // fetched again when first needed
+            e.printStackTrace();
+          }
+          if (fingerprint != null) {
+            saveFingerprint();
+          }
           this.state = State.SUCCESS;
         } else {
+          setFailureCause(null); // failed on the cluster, not on a call
           this.state = State.FAILED;
           this.message = "Job failed!";
         }
       }
     } catch (IOException ioe) {
+      RetryPolicy policy = getRetryPolicy();
+      if (policy != null && policy.shouldRetry(++statusFailures, ioe)) {
+        setRetryAt(System.currentTimeMillis()
+            + policy.getDelayMillis(statusFailures));
+        this.message = "status check " + statusFailures + " failed: " + ioe;
+        return;
+      }
+      setFailureCause(ioe);
       this.state = State.FAILED;
       this.message = StringUtils.stringifyException(ioe);
       try {
@@ -205,6 +387,63 @@ public class ControlledJob extends Controlled {
     }
   }
 
+  private boolean isUpToDate() throws IOException, InterruptedException {
+    List<String> keys = new ArrayList<String>(upToDateKeys);
+    if (requiredCounters != null) {
+      for (RequiredCounter counter : requiredCounters) {
+        keys.add(counter.getPropertyName());
+      }
+    }
+    fingerprint = OutputFingerprint.compute(job, keys, job.getConfiguration()
+        .getInt(FINGERPRINT_THREADS, 8));
+    Map<String, Long> counters = fingerprint.match(job);
+    if (counters == null) {
+      return false;
+    }
+    restoreCounters(counters);
+    fingerprint = null;
+    return true;
+  }
+
+  private void saveFingerprint() {
+    try {
+      fingerprint.save(job, getCounterValues());
+    } catch (IOException e) {
+      // only costs a rerun next time
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Replace the failed job with a fresh one from its configuration, and
+   * remove any output it left behind. Output that was there before the job
+   * ran is left alone.
+   */
+  @Override
+  protected synchronized void prepareRetry() throws IOException {
+    Configuration conf = job.getConfiguration();
+    Path output = FileOutputFormat.getOutputPath(job);
+    if (output != null && launched) {
+      FileSystem outFs = output.getFileSystem(conf);
+      if (outFs.exists(output)) {
+        System.out.println("Deleting partial output " + output);
+        outFs.delete(output, true);
+      }
+    }
+    this.job = new Job(conf, job.getJobName());
+    this.launched = false;
+    this.counters = null;
+    this.statusFailures = 0;
+  }
+
+  /**
+   * Called just before the job is submitted, once the jobs it depends on have
+   * succeeded and their counters have been set: the place to adjust the
+   * configuration to what they produced. Does nothing by default.
+   */
+  protected void beforeSubmit() throws IOException {
+  }
+
   /**
    * Submit this job to mapred. The state becomes RUNNING if submission is
    * successful, FAILED otherwise.
@@ -225,14 +464,26 @@ public class ControlledJob extends Controlled {
           }
         }
       }
+      if (endNotificationUrl != null) {
+        conf.set(JobEndNotificationListener.END_NOTIFICATION_URL,
+            endNotificationUrl);
+      }
       if (requiredCounters != null) {
         for(RequiredCounter counter : requiredCounters) {
           conf.set(counter.getPropertyName(), Long.toString(counter.getCounter()));
         }
       }
+      if (upToDateKeys != null && isUpToDate()) {
+        this.state = State.SUCCESS;
+        this.message = "output is up to date";
+        return;
+      }
+      beforeSubmit();
       job.submit();
+      this.launched = true;
       this.state = State.RUNNING;
     } catch (Exception ioe) {
+      setFailureCause(ioe);
       this.state = State.FAILED;
       this.message = StringUtils.stringifyException(ioe);
     }
@@ -0,0 +1,129 @@
+package kdp.jobcontrol;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Publishes a new output directory in place of the current one, and retires
+ * the old output and any temporary directories.
+ *
+ * The swap takes two renames: the current output to a hidden trash name
+ * next to it, then the new output into place. Readers only find the output
+ * missing between the two. If the second rename fails, the old output is
+ * put back. The retired directories are then renamed to trash names and
+ * deleted by the {@link TrashReaper}, so the action completes as soon as
+ * the new output is visible. Trash left behind by earlier runs is reaped
+ * too.
+ */
+public class ControlledPublish extends ControlledFSAction {
+
+  private Path source;
+  private Path target;
+  private Path[] temporary;
+
+  /**
+   * @param source
+   *          the new output
+   * @param target
+   *          where the output is published
+   * @param temporary
+   *          directories to delete once the new output is published
+   */
+  public ControlledPublish(Configuration conf, Path source, Path target,
+      Path... temporary) throws IOException {
+    super(conf);
+    init(source, target, temporary);
+  }
+
+  public ControlledPublish(FileSystem fs, Path source, Path target,
+      Path... temporary) {
+    super(fs);
+    init(source, target, temporary);
+  }
+
+  public ControlledPublish(Configuration conf, String source, String target,
+      String... temporary) throws IOException {
+    super(conf);
+    init(source, target, temporary);
+  }
+
+  public ControlledPublish(FileSystem fs, String source, String target,
+      String... temporary) {
+    super(fs);
+    init(source, target, temporary);
+  }
+
+  private void init(String source, String target, String... temporary) {
+    Path[] paths = new Path[temporary.length];
+    for (int i = 0; i < temporary.length; i++) {
+      paths[i] = new Path(temporary[i]);
+    }
+    init(new Path(source), new Path(target), paths);
+  }
+
+  private void init(Path source, Path target, Path... temporary) {
+    this.source = source;
+    this.target = target;
+    this.temporary = temporary;
+  }
+
+  @Override
+  protected String getDefaultKey() {
+    return "publish " + source + " " + target;
+  }
+
+  @Override
+  protected void execute() throws IOException, InterruptedException {
+    System.out.println("Publishing " + source + " to " + target);
+    if (!fs.exists(source)) {
+      throw new IOException(source + " does not exist");
+    }
+    Path old = null;
+    if (fs.exists(target)) {
+      old = trashPath(target);
+      if (!fs.rename(target, old)) {
+        throw new IOException("could not move " + target + " aside to " + old);
+      }
+    }
+    if (!fs.rename(source, target)) {
+      if (old != null && !fs.rename(old, target)) {
+        System.out.println("Could not put " + old + " back to " + target);
+      }
+      throw new IOException("could not rename " + source + " to " + target);
+    }
+
+    reapEarlierTrash(target, old);
+    if (old != null) {
+      TrashReaper.reap(fs, old);
+    }
+    for (Path path : temporary) {
+      Path trash = trashPath(path);
+      if (fs.rename(path, trash)) {
+        TrashReaper.reap(fs, trash);
+      }
+    }
+  }
+
+  private static Path trashPath(Path path) {
+    return new Path(path.getParent(), "." + path.getName() + ".trash-"
+        + System.currentTimeMillis());
+  }
+
+  private void reapEarlierTrash(Path path, Path keep) throws IOException {
+    FileStatus[] leftovers = fs.globStatus(new Path(path.getParent(), "."
+        + path.getName() + ".trash-*"));
+    if (leftovers == null) {
+      return;
+    }
+    for (FileStatus leftover : leftovers) {
+      if (keep == null || !leftover.getPath().getName().equals(keep.getName())) {
+        TrashReaper.reap(fs, leftover.getPath());
+      }
+    }
+  }
+
+}
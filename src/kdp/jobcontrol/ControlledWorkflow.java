@@ -0,0 +1,119 @@
+package kdp.jobcontrol;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A JobControl group run as a single job of another group, so that a
+ * workflow can depend on, or be depended on by, a whole sub-workflow.
+ *
+ * The child group has no thread of its own: each status check of this job
+ * makes one pass over the child's jobs. The child submits its jobs on its
+ * parent's submission pool, and they count against the parent's limit on
+ * running jobs and its resource pool as well as the child's own; this job
+ * itself weighs nothing. It succeeds once every job of the child has
+ * succeeded, and fails once they have all finished and any of them failed.
+ */
+public class ControlledWorkflow extends Controlled {
+
+  private final JobControl child;
+  private JobControl parent;
+  private boolean started;
+
+  /**
+   * Construct a job running a group.
+   *
+   * @param child
+   *          the group to run, with its jobs already added; it must not be
+   *          run by a thread or a scheduler of its own
+   * @param dependingJobs
+   *          the jobs the group depends on
+   */
+  public ControlledWorkflow(JobControl child, List<Controlled> dependingJobs) {
+    super();
+    this.child = child;
+    this.dependingJobs = dependingJobs;
+    setWeight(0);
+  }
+
+  /**
+   * @return the group run by this job
+   */
+  public JobControl getWorkflow() {
+    return this.child;
+  }
+
+  @Override
+  public String getName() {
+    return this.child.getGroupName();
+  }
+
+  @Override
+  protected String getDefaultKey() {
+    return "workflow " + getName();
+  }
+
+  /**
+   * Called when this job is added to a group.
+   */
+  synchronized void setParent(JobControl parent) {
+    this.parent = parent;
+  }
+
+  /**
+   * The child is started by the first status check rather than here, as
+   * submission may run with the parent's lock held.
+   */
+  @Override
+  protected void submit() {
+    this.state = State.RUNNING;
+    this.message = "running";
+  }
+
+  @Override
+  protected void checkRunningState() throws IOException,
+      InterruptedException {
+    if (!this.started) {
+      this.child.startNested(this.parent);
+      this.started = true;
+    }
+    if (this.child.isActive() && !this.child.allFinished()) {
+      this.child.tick();
+    }
+    if (this.child.allFinished()) {
+      int failed = this.child.getFailedJobList().size();
+      if (failed == 0) {
+        this.state = State.SUCCESS;
+        this.message = "all " + this.child.getSuccessfulJobList().size()
+            + " jobs succeeded";
+      } else {
+        this.state = State.FAILED;
+        this.message = failed + " jobs of " + getName() + " failed";
+      }
+      this.child.finish();
+    } else if (!this.child.isActive()) {
+      this.state = State.FAILED;
+      this.message = getName() + " was stopped";
+      this.child.finish();
+    } else {
+      this.message = this.child.getSuccessfulJobList().size()
+          + " jobs succeeded, " + this.child.getRunningJobList().size()
+          + " running";
+    }
+  }
+
+  /**
+   * Stop the child, kill its running jobs and fail them, giving back the
+   * room they took in the parent's limits.
+   */
+  @Override
+  protected synchronized void killJob() throws IOException,
+      InterruptedException {
+    if (this.started) {
+      this.child.kill();
+    } else {
+      this.child.stop();
+    }
+  }
+
+}
@@ -0,0 +1,95 @@
+package kdp.jobcontrol;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+
+/**
+ * The counter values of a completed job, fetched once and kept in sorted
+ * arrays: much smaller than the Counters they are taken from, and safe to
+ * read from any thread as they never change.
+ */
+class CounterValues {
+
+  private final String[] keys;
+  private final long[] values;
+
+  private CounterValues(String[] keys, long[] values) {
+    this.keys = keys;
+    this.values = values;
+  }
+
+  static CounterValues of(Counters counters) {
+    int n = 0;
+    for (CounterGroup group : counters) {
+      n += group.size();
+    }
+    String[] keys = new String[n];
+    long[] values = new long[n];
+    int i = 0;
+    for (CounterGroup group : counters) {
+      for (Counter counter : group) {
+        if (i == n) {
+          break; // a counter was added while copying
+        }
+        keys[i] = ControlledJob.counterKey(group.getName(), counter.getName());
+        values[i++] = counter.getValue();
+      }
+    }
+    return sorted(Arrays.copyOf(keys, i), Arrays.copyOf(values, i));
+  }
+
+  /**
+   * @param counters
+   *          values keyed by {@link ControlledJob#counterKey(String, String)}
+   */
+  static CounterValues of(Map<String, Long> counters) {
+    String[] keys = new String[counters.size()];
+    long[] values = new long[keys.length];
+    int i = 0;
+    for (Map.Entry<String, Long> entry : counters.entrySet()) {
+      keys[i] = entry.getKey();
+      values[i++] = entry.getValue();
+    }
+    return sorted(keys, values);
+  }
+
+  private static CounterValues sorted(String[] keys, long[] values) {
+    String[] sortedKeys = keys.clone();
+    Arrays.sort(sortedKeys);
+    long[] sortedValues = new long[values.length];
+    for (int i = 0; i < keys.length; i++) {
+      sortedValues[Arrays.binarySearch(sortedKeys, keys[i])] = values[i];
+    }
+    return new CounterValues(sortedKeys, sortedValues);
+  }
+
+  /**
+   * @return the value of the counter, or 0 if the job did not have it
+   */
+  long get(String groupName, String counterName) {
+    int i = Arrays.binarySearch(this.keys, ControlledJob.counterKey(groupName,
+        counterName));
+    return i < 0 ? 0 : this.values[i];
+  }
+
+  int size() {
+    return this.keys.length;
+  }
+
+  String getGroupName(int i) {
+    return this.keys[i].substring(0, this.keys[i].indexOf('\t'));
+  }
+
+  String getCounterName(int i) {
+    return this.keys[i].substring(this.keys[i].indexOf('\t') + 1);
+  }
+
+  long getValue(int i) {
+    return this.values[i];
+  }
+
+}
@@ -0,0 +1,107 @@
+package kdp.jobcontrol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The longest path from each job of a group to the end of the group, each
+ * job on the path counting as its cost. Jobs on long paths should be
+ * started first, as they decide when the group as a whole can finish.
+ */
+class CriticalPath {
+
+  private final Map<Controlled, Long> lengths;
+
+  /**
+   * Orders jobs by explicit priority, then by longest remaining path, both
+   * highest first.
+   */
+  final Comparator<Controlled> order = new Comparator<Controlled>() {
+    public int compare(Controlled a, Controlled b) {
+      if (a.getPriority() != b.getPriority()) {
+        return a.getPriority() > b.getPriority() ? -1 : 1;
+      }
+      long la = getLength(a);
+      long lb = getLength(b);
+      return la > lb ? -1 : (la == lb ? 0 : 1);
+    }
+  };
+
+  CriticalPath() {
+    this.lengths = new HashMap<Controlled, Long>();
+  }
+
+  /**
+   * @return the cost of the longest path from the job to the end of its
+   *         group, including the job itself
+   */
+  synchronized long getLength(Controlled job) {
+    Long length = this.lengths.get(job);
+    return length == null ? 0 : length;
+  }
+
+  /**
+   * Recompute the path lengths of a group, visiting the jobs from the end of
+   * the group backwards so that each edge is followed once.
+   *
+   * @param jobs
+   *          the jobs of the group
+   * @param costs
+   *          the cost of each job
+   */
+  synchronized void compute(Collection<Controlled> jobs,
+      Map<Controlled, Long> costs) {
+    Map<Controlled, List<Controlled>> preds =
+        new HashMap<Controlled, List<Controlled>>();
+    Map<Controlled, Integer> unvisited = new HashMap<Controlled, Integer>();
+    for (Controlled job : jobs) {
+      preds.put(job, new ArrayList<Controlled>());
+      unvisited.put(job, 0);
+    }
+    for (Controlled job : jobs) {
+      List<Controlled> depending = job.getDependentJobs();
+      if (depending == null) {
+        continue;
+      }
+      for (Controlled pred : depending) {
+        if (preds.containsKey(pred)) {
+          preds.get(job).add(pred);
+          unvisited.put(pred, unvisited.get(pred) + 1);
+        }
+      }
+    }
+
+    Map<Controlled, Long> longestAfter = new HashMap<Controlled, Long>();
+    LinkedList<Controlled> ends = new LinkedList<Controlled>();
+    for (Controlled job : jobs) {
+      if (unvisited.get(job) == 0) {
+        ends.add(job);
+      }
+    }
+    this.lengths.clear();
+    while (!ends.isEmpty()) {
+      Controlled job = ends.removeFirst();
+      Long after = longestAfter.get(job);
+      long length = costs.get(job) + (after == null ? 0 : after);
+      this.lengths.put(job, length);
+      for (Controlled pred : preds.get(job)) {
+        Long best = longestAfter.get(pred);
+        if (best == null || best < length) {
+          longestAfter.put(pred, length);
+        }
+        int left = unvisited.get(pred) - 1;
+        unvisited.put(pred, left);
+        if (left == 0) {
+          ends.add(pred);
+        }
+      }
+    }
+    // jobs on a dependency cycle never run; leave them at zero
+  }
+
+}
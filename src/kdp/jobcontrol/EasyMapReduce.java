@@ -3,6 +3,8 @@ package kdp.jobcontrol;
 import java.io.IOException;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
@@ -17,7 +19,12 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
  * Literate wrapper for Job, ControlledJob, and Configuration
  */
 public class EasyMapReduce extends ControlledJob {
+  public static final String BYTES_PER_MAP = "mapreduce.jobcontrol.auto.bytes.per.map";
+  public static final String BYTES_PER_REDUCER = "mapreduce.jobcontrol.auto.bytes.per.reducer";
+  public static final String MAX_REDUCERS = "mapreduce.jobcontrol.auto.max.reducers";
   Configuration conf;
+  private boolean autoTuning;
+  private boolean fixedReducers;
   public EasyMapReduce() throws IOException {
     conf = new Configuration();
     setJob(new Job(conf));
@@ -54,8 +61,27 @@ public class EasyMapReduce extends ControlledJob {
   }
   public EasyMapReduce withNumReduceTasks(int numTasks) {
     getJob().setNumReduceTasks(numTasks);
+    this.fixedReducers = true;
     return this;
   }
+  /**
+   * Pick the number of reducers and the split size when the job is
+   * submitted, from the size of its input at that time, aiming at
+   * {@link #BYTES_PER_MAP} bytes per map and {@link #BYTES_PER_REDUCER}
+   * bytes per reducer, up to {@link #MAX_REDUCERS} reducers. Splits are
+   * never made smaller than a block or the per-map target, whichever is
+   * smaller. A number of reducers set with
+   * {@link #withNumReduceTasks(int)} is kept, so only the splits are tuned.
+   */
+  public EasyMapReduce withAutoTuning() {
+    this.autoTuning = true;
+    return this;
+  }
+  public EasyMapReduce withAutoTuning(long bytesPerMap, long bytesPerReducer) {
+    getJob().getConfiguration().setLong(BYTES_PER_MAP, bytesPerMap);
+    getJob().getConfiguration().setLong(BYTES_PER_REDUCER, bytesPerReducer);
+    return withAutoTuning();
+  }
   public EasyMapReduce withFileInput(String inputPath)
     throws IOException {
     return withFileInput(new Path(inputPath));
@@ -90,6 +116,19 @@ public class EasyMapReduce extends ControlledJob {
     addDependingJob(dependency);
     return this;
   }
+  public EasyMapReduce withDependingJob(Controlled dependency,
+                                        Condition condition) {
+    addDependingJob(dependency, condition);
+    return this;
+  }
+  public EasyMapReduce asIntermediate() {
+    setIntermediate(true);
+    return this;
+  }
+  public EasyMapReduce withUpToDateCheck(String... confKeys) {
+    setUpToDateCheck(confKeys);
+    return this;
+  }
   public EasyMapReduce withCounter(ControlledJob dependingJob,
                                    String groupName, String counterName,
                                    String propertyName) {
@@ -99,4 +138,45 @@ public class EasyMapReduce extends ControlledJob {
       throw new IllegalStateException("Unable to add required counter, job has likely started");
     }
   }        
-}
\ No newline at end of file
+
+  @Override
+  protected void beforeSubmit() throws IOException {
+    if (!autoTuning) {
+      return;
+    }
+    Job job = getJob();
+    Configuration jobConf = job.getConfiguration();
+    long bytesPerMap = jobConf.getLong(BYTES_PER_MAP, 256L << 20);
+    long bytesPerReducer = jobConf.getLong(BYTES_PER_REDUCER, 1L << 30);
+    int maxReducers = jobConf.getInt(MAX_REDUCERS, 999);
+    // measured now, as the outputs of the jobs depended on only exist now
+    long bytes = 0;
+    // the smallest block of any input, so no split spans blocks of any
+    long blockSize = Long.MAX_VALUE;
+    for (Path input : FileInputFormat.getInputPaths(job)) {
+      FileSystem fs = input.getFileSystem(jobConf);
+      blockSize = Math.min(blockSize, fs.getDefaultBlockSize(input));
+      FileStatus[] matches = fs.globStatus(input);
+      if (matches == null) {
+        continue;
+      }
+      for (FileStatus match : matches) {
+        bytes += fs.getContentSummary(match.getPath()).getLength();
+      }
+    }
+    long maps = Math.max(1, (bytes + bytesPerMap - 1) / bytesPerMap);
+    // no tiny splits for tiny or empty inputs
+    long splitSize = Math.max(Math.min(bytesPerMap, blockSize),
+        (bytes + maps - 1) / maps);
+    FileInputFormat.setMinInputSplitSize(job, splitSize);
+    FileInputFormat.setMaxInputSplitSize(job, splitSize);
+    if (!fixedReducers && job.getNumReduceTasks() > 0) {
+      long reducers = (bytes + bytesPerReducer - 1) / bytesPerReducer;
+      job.setNumReduceTasks((int) Math.max(1, Math.min(maxReducers,
+          reducers)));
+    }
+    System.out.println("Tuned " + job.getJobName() + " for " + bytes
+        + " input bytes: splits of " + splitSize + " bytes, "
+        + job.getNumReduceTasks() + " reducers");
+  }
+}
@@ -0,0 +1,171 @@
+package kdp.jobcontrol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import kdp.jobcontrol.Controlled.State;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * Tracks the jobs reading each intermediate output of a group, and has the
+ * output deleted in the background once they have all succeeded. The
+ * readers are the jobs depending on the producer directly, and those whose
+ * input paths are in the output. An output is kept as soon as one of its
+ * readers fails, so that the workflow can be restarted from it, and when
+ * jobs of other groups depend on the producer, as they are not tracked.
+ */
+class IntermediateOutputs {
+
+  // per output, the readers that have not succeeded yet
+  private final Map<ControlledJob, Set<Controlled>> pending;
+  // per reader, the outputs it is holding on to
+  private final Map<Controlled, List<ControlledJob>> held;
+
+  IntermediateOutputs() {
+    this.pending = new HashMap<ControlledJob, Set<Controlled>>();
+    this.held = new HashMap<Controlled, List<ControlledJob>>();
+  }
+
+  /**
+   * Called when a job with an intermediate output succeeds.
+   *
+   * @param producer
+   *          the job
+   * @param consumers
+   *          the jobs reading its output; if there are none, the output is
+   *          kept
+   * @param readOutside
+   *          whether jobs of other groups depend on the producer, in which
+   *          case the output is kept
+   */
+  void produced(ControlledJob producer, Collection<Controlled> consumers,
+      boolean readOutside) {
+    if (readOutside) {
+      System.out.println("Keeping " + getOutput(producer)
+          + " as jobs of other groups depend on " + producer.getName());
+      return;
+    }
+    Set<Controlled> left = new HashSet<Controlled>();
+    for (Controlled consumer : consumers) {
+      State state = consumer.getJobState();
+      if (state == State.FAILED || state == State.DEPENDENT_FAILED) {
+        return;
+      }
+      if (state != State.SUCCESS && state != State.SKIPPED) {
+        left.add(consumer);
+      }
+    }
+    if (consumers.isEmpty()) {
+      return;
+    }
+    if (left.isEmpty()) {
+      delete(producer);
+      return;
+    }
+    this.pending.put(producer, left);
+    for (Controlled consumer : left) {
+      List<ControlledJob> outputs = this.held.get(consumer);
+      if (outputs == null) {
+        outputs = new ArrayList<ControlledJob>();
+        this.held.put(consumer, outputs);
+      }
+      outputs.add(producer);
+    }
+  }
+
+  /**
+   * Called when any job of the group completes.
+   */
+  void completed(Controlled consumer) {
+    List<ControlledJob> outputs = this.held.remove(consumer);
+    if (outputs == null) {
+      return;
+    }
+    for (ControlledJob producer : outputs) {
+      Set<Controlled> left = this.pending.get(producer);
+      if (left == null) {
+        continue; // already kept
+      }
+      if (!consumer.isSuccessful()) {
+        this.pending.remove(producer);
+        System.out.println("Keeping " + getOutput(producer) + " as "
+            + consumer.getName() + " did not succeed");
+        continue;
+      }
+      left.remove(consumer);
+      if (left.isEmpty()) {
+        this.pending.remove(producer);
+        delete(producer);
+      }
+    }
+  }
+
+  /**
+   * @return the jobs that depend on the producer, or read from its output
+   *         although they depend on it only indirectly
+   */
+  static List<Controlled> findConsumers(ControlledJob producer,
+      Collection<Controlled> jobs) {
+    List<Controlled> consumers = new ArrayList<Controlled>();
+    String output = qualify(producer, getOutput(producer));
+    for (Controlled job : jobs) {
+      if (job == producer) {
+        continue;
+      }
+      List<Controlled> depending = job.getDependentJobs();
+      if (depending != null && depending.contains(producer)) {
+        consumers.add(job);
+      } else if (output != null && job instanceof ControlledJob) {
+        ControlledJob reader = (ControlledJob) job;
+        for (Path input : FileInputFormat.getInputPaths(reader.getJob())) {
+          String path = qualify(reader, input);
+          if (path != null
+              && (path.equals(output) || path.startsWith(output + "/"))) {
+            consumers.add(job);
+            break;
+          }
+        }
+      }
+    }
+    return consumers;
+  }
+
+  private static String qualify(ControlledJob job, Path path) {
+    if (path == null) {
+      return null;
+    }
+    try {
+      return path.getFileSystem(job.getJob().getConfiguration())
+          .makeQualified(path).toString();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  static Path getOutput(ControlledJob job) {
+    return FileOutputFormat.getOutputPath(job.getJob());
+  }
+
+  private static void delete(ControlledJob producer) {
+    Path output = getOutput(producer);
+    if (output == null) {
+      return;
+    }
+    try {
+      TrashReaper.reap(output.getFileSystem(producer.getJob()
+          .getConfiguration()), output);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -19,14 +19,32 @@
 package kdp.jobcontrol;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import kdp.jobcontrol.Controlled.State;
 
+import org.apache.hadoop.util.StringUtils;
+
 /** 
  *  This class encapsulates a set of MapReduce jobs and its dependency.
  *   
@@ -48,76 +66,227 @@ public class JobControl implements Runnable {
 
   // The thread can be in one of the following state
   public static enum ThreadState {RUNNING, SUSPENDED,STOPPED, STOPPING, READY};
+
+  /**
+   * How {@link JobControl#stop(StopMode, long)} treats the running jobs.
+   * GRACEFUL submits nothing new and lets the running jobs finish;
+   * IMMEDIATE kills them.
+   */
+  public static enum StopMode {GRACEFUL, IMMEDIATE};
 	
-  private ThreadState runnerState;			// the thread state
+  private volatile ThreadState runnerState;			// the thread state
 	
-  private Map<String, Controlled> waitingJobs;
-  private Map<String, Controlled> readyJobs;
-  private Map<String, Controlled> runningJobs;
-  private Map<String, Controlled> successfulJobs;
-  private Map<String, Controlled> failedJobs;
+  private JobQueue waitingJobs;
+  private JobQueue readyJobs;
+  private JobQueue runningJobs;
+  private JobQueue successfulJobs;
+  private JobQueue failedJobs;
+  // jobs added to the group that have not yet completed
+  private AtomicInteger unfinishedJobs;
+  // bumped on every move between queues, to know when a snapshot is stale
+  private AtomicLong version;
+  private volatile JobControlSnapshot snapshot;
 	
   private long nextJobID;
   private String groupName;
 
   private long pollIntervalMillis = 5000;
+
+  // when set, waiting jobs are promoted by their predecessors' state changes
+  // rather than by re-checking every waiting job on every tick
+  private boolean eventDriven = true;
+  // reverse edges: the waiting jobs of this group blocked on a given job
+  private Map<Controlled, List<Controlled>> dependents;
+  // number of predecessors of a waiting job that have not yet completed
+  private Map<Controlled, Integer> pendingPredecessors;
+  // waiting jobs depending on a job outside this group, which must be polled
+  private JobQueue polledJobs;
+  private Set<Controlled> members;
+
+  // ready jobs handed to the submitter whose submit() has not yet returned
+  private Map<String, Controlled> submittingJobs;
+  // jobs whose submit() has returned, waiting for the next tick to move them
+  private ConcurrentLinkedQueue<Controlled> submittedJobs;
+  private ExecutorService submitter;
+  private boolean ownSubmitter;
+  private boolean sharedSubmitter;
+  private int submissionThreads = 10;
+
+  private StatusPoller poller;
+  private JobEndNotificationListener notificationListener;
+  private long maxPollIntervalMillis = 60000;
+  private volatile long lastTickMillis;
+  private volatile long maxTickMillis;
+
+  private StateChangeDispatcher dispatcher;
+  private Map<Controlled, JobFuture<State>> futures;
+  private JobFuture<Boolean> completion;
+
+  private JobControlScheduler scheduler;
+
+  // admission control: the total weight of the jobs submitted and not yet
+  // completed, and the pool each of them was admitted by
+  private int maxRunningJobs = Integer.MAX_VALUE;
+  private int runningWeight;
+  private ResourcePool resourcePool;
+  private Map<Controlled, Admission> admittedJobs;
+
+  // the group running this one as a ControlledWorkflow, whose limits also
+  // apply to our jobs, and the nested groups waiting for room in ours
+  private JobControl parent;
+  private Set<JobControl> waitingChildren;
+
+  // ready jobs are submitted along the longest remaining path first
+  private CriticalPath criticalPath;
+  private boolean criticalPathStale;
+
+  // run time history, and when each job reached each stage in this run
+  private RuntimeHistory history;
+  private Map<Controlled, Timing> timings;
+  private long deadline;
+
+  private WorkflowJournal journal;
+  // the keys of the jobs journaled, each of which identifies a single job
+  private Set<String> journalKeys;
+
+  private IntermediateOutputs intermediates;
+
+  private Watchdog watchdog;
+
+  // fail-fast: once a job fails, cancel the jobs no sink needs any more
+  private boolean failFast;
+  private Collection<Controlled> sinks;
+  private boolean failFastPending;
+  private Set<Controlled> cancelling;
+
+  // set while stopping: no job is submitted, and jobs whose submission
+  // completes are killed
+  private volatile boolean draining;
+  private volatile boolean killOnSubmit;
+
+  private static class Timing {
+    long readyAt;
+    long submitAt;
+    volatile long submittedAt;
+    long runningAt;
+  }
+
+  private static class Admission {
+    final ResourcePool pool;
+    final int weight;
+    final JobControl outer;
+
+    Admission(ResourcePool pool, int weight, JobControl outer) {
+      this.pool = pool;
+      this.weight = weight;
+      this.outer = outer;
+    }
+  }
+
+  private final Object wakeup = new Object();
+  private boolean wakeupRequested;
 	
   /** 
    * Construct a job control for a group of jobs.
    * @param groupName a name identifying this group
    */
   public JobControl(String groupName) {
-    this.waitingJobs = new Hashtable<String, Controlled>();
-    this.readyJobs = new Hashtable<String, Controlled>();
-    this.runningJobs = new Hashtable<String, Controlled>();
-    this.successfulJobs = new Hashtable<String, Controlled>();
-    this.failedJobs = new Hashtable<String, Controlled>();
+    this.waitingJobs = new JobQueue();
+    this.readyJobs = new JobQueue();
+    this.runningJobs = new JobQueue();
+    this.successfulJobs = new JobQueue();
+    this.failedJobs = new JobQueue();
+    this.unfinishedJobs = new AtomicInteger();
+    this.version = new AtomicLong();
+    this.dependents = new HashMap<Controlled, List<Controlled>>();
+    this.pendingPredecessors = new HashMap<Controlled, Integer>();
+    this.polledJobs = new JobQueue();
+    this.members = new HashSet<Controlled>();
+    this.journalKeys = new HashSet<String>();
+    this.submittingJobs = new ConcurrentHashMap<String, Controlled>();
+    this.submittedJobs = new ConcurrentLinkedQueue<Controlled>();
+    this.dispatcher = new StateChangeDispatcher(groupName);
+    this.futures = new HashMap<Controlled, JobFuture<State>>();
+    this.admittedJobs = new HashMap<Controlled, Admission>();
+    this.waitingChildren = new HashSet<JobControl>();
+    this.criticalPath = new CriticalPath();
+    this.intermediates = new IntermediateOutputs();
+    this.watchdog = new Watchdog();
+    this.cancelling = new HashSet<Controlled>();
+    this.timings = new HashMap<Controlled, Timing>();
+    this.poller = new StatusPoller(groupName, 10, pollIntervalMillis,
+        maxPollIntervalMillis);
     this.nextJobID = -1;
     this.groupName = groupName;
     this.runnerState = ThreadState.READY;
   }
 	
-  private static List<Controlled> toList(
-                   Map<String, Controlled> jobs) {
-    ArrayList<Controlled> retv = new ArrayList<Controlled>();
-    synchronized (jobs) {
-      for (Controlled job : jobs.values()) {
-        retv.add(job);
-      }
-    }
-    return retv;
+  /**
+   * @return the name identifying this group
+   */
+  public String getGroupName() {
+    return this.groupName;
   }
-	
+
   /**
    * @return the jobs in the waiting state
    */
   public List<Controlled> getWaitingJobList() {
-    return toList(this.waitingJobs);
+    return this.waitingJobs.toList();
   }
 	
   /**
    * @return the jobs in the running state
    */
   public List<Controlled> getRunningJobList() {
-    return toList(this.runningJobs);
+    return this.runningJobs.toList();
   }
 	
   /**
    * @return the jobs in the ready state
    */
   public List<Controlled> getReadyJobsList() {
-    return toList(this.readyJobs);
+    return this.readyJobs.toList();
   }
 	
   /**
-   * @return the jobs in the success state
+   * @return the jobs in the success state, including those skipped
    */
   public List<Controlled> getSuccessfulJobList() {
-    return toList(this.successfulJobs);
+    return this.successfulJobs.toList();
   }
 	
   public List<Controlled> getFailedJobList() {
-    return toList(this.failedJobs);
+    return this.failedJobs.toList();
+  }
+
+  /**
+   * Get the jobs of this group in each state, without waiting on the
+   * JobControl thread. The snapshot is only rebuilt once the jobs have
+   * changed state since the last one was taken.
+   * 
+   * @return an immutable view of the jobs in each state
+   */
+  public JobControlSnapshot getSnapshot() {
+    long current = this.version.get();
+    JobControlSnapshot retv = this.snapshot;
+    if (retv == null || retv.getVersion() != current) {
+      retv = new JobControlSnapshot(current, this.waitingJobs.toList(),
+          this.readyJobs.toList(), this.runningJobs.toList(),
+          this.successfulJobs.toList(), this.failedJobs.toList());
+      this.snapshot = retv;
+    }
+    return retv;
+  }
+
+  /**
+   * @param state a job state
+   * @return the number of jobs of this group in the given state, where
+   *         SUCCESS and SKIPPED are counted together, as are FAILED and
+   *         DEPENDENT_FAILED
+   */
+  public int getJobCount(State state) {
+    return getQueue(state).size();
   }
 	
   private String getNextJobID() {
@@ -125,27 +294,15 @@ public class JobControl implements Runnable {
     return this.groupName + this.nextJobID;
   }
 	
-  private static void addToQueue(Controlled aJob, 
-                                 Map<String, Controlled> queue) {
-    synchronized(queue) {
-      queue.put(aJob.getJobID(), aJob);
-    }		
-  }
-	
-  private void addToQueue(Controlled aJob) {
-    Map<String, Controlled> queue = getQueue(aJob.getJobState());
-    addToQueue(aJob, queue);	
-  }
-	
-  private Map<String, Controlled> getQueue(State state) {
-    Map<String, Controlled> retv = null;
+  private JobQueue getQueue(State state) {
+    JobQueue retv = null;
     if (state == State.WAITING) {
       retv = this.waitingJobs;
     } else if (state == State.READY) {
       retv = this.readyJobs;
     } else if (state == State.RUNNING) {
       retv = this.runningJobs;
-    } else if (state == State.SUCCESS) {
+    } else if (state == State.SUCCESS || state == State.SKIPPED) {
       retv = this.successfulJobs;
     } else if (state == State.FAILED || state == State.DEPENDENT_FAILED) {
       retv = this.failedJobs;
@@ -156,14 +313,89 @@ public class JobControl implements Runnable {
   /**
    * Add a new job.
    * @param aJob the new job
+   * @throws IllegalArgumentException if a journal is set and the job has no
+   *         key, or the same key as another job of this group
    */
   synchronized public String addJob(Controlled aJob) {
+    if (this.journal != null) {
+      checkKey(aJob);
+      this.journalKeys.add(aJob.getKey());
+    }
     String id = this.getNextJobID();
     aJob.setJobID(id);
     aJob.setJobState(State.WAITING);
-    this.addToQueue(aJob);
+    this.unfinishedJobs.incrementAndGet();
+    this.waitingJobs.add(aJob);
+    this.version.incrementAndGet();
+    this.members.add(aJob);
+    this.criticalPathStale = true;
+    if (aJob instanceof ControlledWorkflow) {
+      ((ControlledWorkflow) aJob).setParent(this);
+    }
+    if (aJob instanceof ControlledFSAction) {
+      ((ControlledFSAction) aJob).setGroup(this);
+    }
+    if (this.completion != null && this.completion.isDone()) {
+      this.completion = null;
+    }
+    LinkedList<Controlled> changes = new LinkedList<Controlled>();
+    if (this.journal != null && this.journal.hasSucceeded(aJob.getKey())) {
+      if (aJob instanceof ControlledJob) {
+        ((ControlledJob) aJob).restoreCounters(this.journal.getCounters(aJob
+            .getKey()));
+      }
+      aJob.setJobState(State.SUCCESS);
+      aJob.setMessage("succeeded in an earlier run");
+      changes.add(aJob);
+    } else {
+      resolve(aJob, changes);
+    }
+    resolvePolledDependents(aJob, changes);
+    processStateChanges(changes);
     return id;	
   }
+
+  /**
+   * Make sure a job can be told apart from the others in the journal, as a
+   * job taken for another would be marked successful without running.
+   */
+  private void checkKey(Controlled aJob) {
+    String key = aJob.getKey();
+    if (key == null) {
+      throw new IllegalArgumentException("job '" + aJob.getName()
+          + "' of " + this.groupName
+          + " has no key to journal it by; set one with setKey");
+    }
+    if (this.journalKeys.contains(key)) {
+      throw new IllegalArgumentException("another job of " + this.groupName
+          + " has the key " + key);
+    }
+  }
+
+  /**
+   * Recount the polled jobs waiting on a job that has just been added, which
+   * no longer need polling for it now that it is one of ours, so that jobs
+   * added before their predecessors are still promoted by events.
+   */
+  private void resolvePolledDependents(Controlled aJob,
+      List<Controlled> changes) {
+    if (this.polledJobs.isEmpty()) {
+      return;
+    }
+    boolean found = false;
+    for (Controlled next : this.polledJobs.toList()) {
+      List<Controlled> preds = next.getDependentJobs();
+      if (preds != null && preds.contains(aJob)
+          && next.getJobState() == State.WAITING) {
+        this.polledJobs.remove(next);
+        found = true;
+        resolve(next, changes);
+      }
+    }
+    if (found) {
+      aJob.removeWatcher(this);
+    }
+  }
 	
   /**
    * Add a collection of jobs
@@ -176,6 +408,546 @@ public class JobControl implements Runnable {
     }
   }
 	
+  /**
+   * Choose how waiting jobs are promoted. When event driven (the default),
+   * a waiting job is only re-examined when one of its predecessors in this
+   * group completes; otherwise every waiting job is re-checked on every tick.
+   * Jobs depending on a job that was never added to this group are always
+   * re-checked on every tick.
+   * 
+   * @param eventDriven whether to promote waiting jobs on predecessor events
+   */
+  public synchronized void setEventDriven(boolean eventDriven) {
+    this.eventDriven = eventDriven;
+  }
+
+  /**
+   * Set the number of threads used to submit ready jobs concurrently. With
+   * zero threads, jobs are submitted one at a time on the JobControl thread.
+   * Has no effect once the first job has been submitted.
+   * 
+   * @param threads the size of the submission pool
+   */
+  public synchronized void setSubmissionThreads(int threads) {
+    this.submissionThreads = threads;
+  }
+
+  /**
+   * Use the given executor to submit ready jobs, instead of a pool owned by
+   * this JobControl. The executor is not shut down when the thread stops.
+   * 
+   * @param executor the executor used to call submit() on ready jobs
+   */
+  public synchronized void setSubmissionExecutor(ExecutorService executor) {
+    this.submitter = executor;
+    this.ownSubmitter = false;
+  }
+
+  /**
+   * Set the time between two passes over the jobs of this group, which is
+   * also the shortest time between two status checks of a running job.
+   * 
+   * @param intervalMillis the poll interval, in milliseconds
+   */
+  public synchronized void setPollIntervalMillis(long intervalMillis) {
+    this.pollIntervalMillis = intervalMillis;
+    this.poller.setIntervals(intervalMillis, this.maxPollIntervalMillis);
+  }
+
+  long getPollIntervalMillis() {
+    return this.pollIntervalMillis;
+  }
+
+  /**
+   * Limit the jobs of this group running at once. Jobs count as their
+   * weight, one by default; ready jobs beyond the limit wait until running
+   * ones complete.
+   * 
+   * @param limit the maximum total weight of the running jobs
+   */
+  public synchronized void setMaxRunningJobs(int limit) {
+    this.maxRunningJobs = limit;
+    wakeUp();
+  }
+
+  /**
+   * Require the jobs of this group that have no pool of their own to be
+   * admitted by the given pool, which may be shared with other groups.
+   * 
+   * @param pool the pool limiting the jobs running at once
+   */
+  public synchronized void setResourcePool(ResourcePool pool) {
+    this.resourcePool = pool;
+  }
+
+  /**
+   * Set the number of running jobs whose status is checked concurrently.
+   * 
+   * @param threads the size of the status polling pool
+   */
+  public void setStatusThreads(int threads) {
+    this.poller.setThreads(threads);
+  }
+
+  /**
+   * Set the longest time between two status checks of a running job. Jobs
+   * are polled on every tick when they start, and less often as they age,
+   * up to this interval.
+   * 
+   * @param intervalMillis the maximum poll interval, in milliseconds
+   */
+  public synchronized void setMaxPollIntervalMillis(long intervalMillis) {
+    this.maxPollIntervalMillis = intervalMillis;
+    this.poller.setIntervals(this.pollIntervalMillis, intervalMillis);
+  }
+
+  /**
+   * Have the jobs of this group report their completion to the given
+   * listener, which must be started by the caller. Running jobs are still
+   * polled, in case a notification is lost.
+   * 
+   * @param listener the listener to register as end-notification URL
+   */
+  public synchronized void setJobEndNotificationListener(
+      JobEndNotificationListener listener) {
+    this.notificationListener = listener;
+  }
+
+  /**
+   * Called when a job of this group is reported to have ended, to check its
+   * status right away rather than at its next poll.
+   * 
+   * @param jobID the ID assigned to the job by this JobControl
+   */
+  void jobEnded(String jobID) {
+    Controlled job = this.runningJobs.get(jobID);
+    if (job != null) {
+      this.poller.pollSoon(job);
+    }
+    wakeUp();
+  }
+
+  /**
+   * Register a listener for the state transitions of the jobs in this group.
+   * 
+   * @param listener the listener to add
+   */
+  public void addStateListener(JobStateListener listener) {
+    this.dispatcher.addListener(listener);
+  }
+
+  public void removeStateListener(JobStateListener listener) {
+    this.dispatcher.removeListener(listener);
+  }
+
+  /**
+   * @return the number of state transitions not delivered to the listeners
+   *         because they were falling too far behind
+   */
+  public long getDroppedStateChanges() {
+    return this.dispatcher.getDroppedCount();
+  }
+
+  /**
+   * Get a future for a job of this group, completed with the job's final
+   * state: SUCCESS, SKIPPED, FAILED or DEPENDENT_FAILED.
+   * 
+   * @param job a job added to this group
+   * @return the future for the job
+   */
+  public synchronized JobFuture<State> getFuture(Controlled job) {
+    JobFuture<State> future = this.futures.get(job);
+    if (future == null) {
+      future = new JobFuture<State>();
+      if (job.isCompleted()) {
+        future.set(job.getJobState());
+      } else {
+        this.futures.put(job, future);
+      }
+    }
+    return future;
+  }
+
+  /**
+   * Get a future completed once every job in this group has finished, with
+   * true if they all succeeded. Adding jobs afterwards starts a new future.
+   * Once the group has stopped, the future is completed with false if some
+   * jobs never finished.
+   * 
+   * @return the future for the whole group
+   */
+  public synchronized JobFuture<Boolean> getCompletionFuture() {
+    if (this.completion == null) {
+      this.completion = new JobFuture<Boolean>();
+      checkCompletion();
+      if (this.runnerState == ThreadState.STOPPED) {
+        this.completion.set(false); // nothing left to finish the jobs
+      }
+    }
+    return this.completion;
+  }
+
+  private void checkCompletion() {
+    if (this.completion != null && allFinished()) {
+      this.completion.set(this.failedJobs.isEmpty());
+    }
+  }
+
+  /**
+   * @return how long the last pass over the jobs took, in milliseconds. A
+   *         value close to the poll interval means status polling or
+   *         submission is saturated.
+   */
+  public long getLastTickMillis() {
+    return this.lastTickMillis;
+  }
+
+  /**
+   * @return the longest pass over the jobs so far, in milliseconds
+   */
+  public long getMaxTickMillis() {
+    return this.maxTickMillis;
+  }
+
+  /**
+   * Count the predecessors of a waiting job that have not yet completed,
+   * recording it as a dependent of each of them. The job becomes READY when
+   * none are left to wait on, or DEPENDENT_FAILED as soon as one has failed.
+   * A job with an incomplete predecessor outside this group is left to be
+   * polled instead, and the group is woken when that predecessor completes.
+   */
+  private void resolve(Controlled job, List<Controlled> changes) {
+    List<Controlled> preds = job.getDependentJobs();
+    List<Controlled> blocking = new ArrayList<Controlled>();
+    if (preds != null) {
+      for (int i = 0; i < preds.size(); i++) {
+        Controlled pred = preds.get(i);
+        State s = pred.getJobState();
+        if (s == State.FAILED || s == State.DEPENDENT_FAILED) {
+          if (!job.compareAndSetJobState(State.WAITING,
+              State.DEPENDENT_FAILED)) {
+            changes.add(job);
+            return;
+          }
+          job.setMessage("depending job " + i + " with jobID "
+              + pred.getJobID() + " failed. " + pred.getMessage());
+          changes.add(job);
+          return;
+        }
+        if (s != State.SUCCESS && s != State.SKIPPED) {
+          if (!this.members.contains(pred)) {
+            pred.addWatcher(this);
+            this.polledJobs.add(job);
+            return;
+          }
+          blocking.add(pred);
+        }
+      }
+    }
+    if (blocking.isEmpty()) {
+      job.compareAndSetJobState(State.WAITING, job.checkConditions());
+      changes.add(job);
+      return;
+    }
+    for (Controlled pred : blocking) {
+      List<Controlled> waiting = this.dependents.get(pred);
+      if (waiting == null) {
+        waiting = new ArrayList<Controlled>();
+        this.dependents.put(pred, waiting);
+      }
+      waiting.add(job);
+    }
+    this.pendingPredecessors.put(job, blocking.size());
+  }
+
+  /**
+   * Move each changed job to the queue for its new state, and release the
+   * dependents of those that have completed. Dependents that fail as a
+   * result are handled in the same pass, so a failure reaches every
+   * transitive dependent at once.
+   */
+  private void processStateChanges(LinkedList<Controlled> changes) {
+    while (!changes.isEmpty()) {
+      Controlled job = changes.removeFirst();
+      State newState = job.getJobState();
+      if (newState == State.FAILED && scheduleRetry(job)) {
+        newState = State.READY;
+      }
+      State oldState = moveToQueue(job, newState);
+      if (oldState != null && getQueue(oldState) == getQueue(newState)) {
+        continue; // already handled earlier in this pass
+      }
+      if (oldState != newState) {
+        this.dispatcher.fire(job, oldState, newState);
+      }
+      recordTiming(job, newState);
+      if (newState == State.RUNNING) {
+        this.watchdog.watch(job, System.currentTimeMillis());
+        if (this.failFast && !this.failedJobs.isEmpty()) {
+          this.failFastPending = true; // started after the failure
+        }
+      } else {
+        this.watchdog.unwatch(job);
+      }
+      if (this.journal != null) {
+        if (newState == State.SUCCESS && oldState != State.WAITING
+            && job instanceof ControlledJob) {
+          // before SUCCESS, so a resumed run always finds them, whether the
+          // job ran or its output was up to date; not when restored from
+          // the journal itself
+          try {
+            this.journal.recordCounters(job.getKey(), ((ControlledJob) job)
+                .getCounterValues());
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }
+        try {
+          this.journal.record(job.getKey(), newState);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      if (newState != State.WAITING) {
+        this.pendingPredecessors.remove(job);
+      }
+      if (!job.isCompleted()) {
+        continue;
+      }
+      if (this.notificationListener != null) {
+        this.notificationListener.unregister(job);
+      }
+      List<JobControl> watchers = job.takeWatchers();
+      if (watchers != null) {
+        for (JobControl watcher : watchers) {
+          watcher.wakeUp();
+        }
+      }
+      if (this.failFast && !job.isSuccessful()) {
+        this.failFastPending = true;
+      }
+      this.cancelling.remove(job);
+      release(job);
+      JobFuture<State> future = this.futures.remove(job);
+      if (future != null) {
+        future.set(job.getJobState());
+      }
+      this.intermediates.completed(job);
+      if (job.getJobState() == State.SUCCESS && job instanceof ControlledJob
+          && ((ControlledJob) job).isIntermediate()) {
+        this.intermediates.produced((ControlledJob) job, IntermediateOutputs
+            .findConsumers((ControlledJob) job, this.members),
+            watchers != null);
+      }
+      List<Controlled> waiting = this.dependents.remove(job);
+      if (waiting == null) {
+        continue;
+      }
+      for (Controlled next : waiting) {
+        if (next.getJobState() != State.WAITING) {
+          // already moved on by a dependent's recursive checkState
+          this.pendingPredecessors.remove(next);
+          if (this.waitingJobs.contains(next)) {
+            changes.add(next);
+          }
+          continue;
+        }
+        if (!job.isSuccessful()) {
+          this.pendingPredecessors.remove(next);
+          if (!next.compareAndSetJobState(State.WAITING,
+              State.DEPENDENT_FAILED)) {
+            changes.add(next);
+            continue;
+          }
+          next.setMessage("depending job with jobID " + job.getJobID()
+              + " failed. " + job.getMessage());
+          changes.add(next);
+          continue;
+        }
+        int pending = this.pendingPredecessors.get(next) - 1;
+        if (pending > 0) {
+          this.pendingPredecessors.put(next, pending);
+        } else {
+          // recount, in case dependencies were added after addJob
+          this.pendingPredecessors.remove(next);
+          resolve(next, changes);
+        }
+      }
+    }
+    if (this.failFastPending) {
+      this.failFastPending = false;
+      cancelUnneededJobs();
+    }
+    checkCompletion();
+  }
+
+  /**
+   * Fail fast: once a job of this group has failed, cancel every job that
+   * no longer leads to a sink that can still succeed. Running jobs are
+   * killed in parallel on the submission pool; jobs not started yet fail
+   * straight away.
+   * 
+   * @param failFast whether to cancel the jobs that are no longer needed
+   */
+  public synchronized void setFailFast(boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  /**
+   * Set the jobs whose results are wanted from this group, for fail-fast.
+   * By default they are the jobs no other job of the group depends on.
+   * 
+   * @param sinks the wanted jobs
+   */
+  public synchronized void setSinks(Collection<Controlled> sinks) {
+    this.sinks = new ArrayList<Controlled>(sinks);
+  }
+
+  private void cancelUnneededJobs() {
+    Collection<Controlled> wanted = this.sinks;
+    if (wanted == null) {
+      Set<Controlled> ends = new HashSet<Controlled>(this.members);
+      for (Controlled job : this.members) {
+        List<Controlled> preds = job.getDependentJobs();
+        if (preds != null) {
+          ends.removeAll(preds);
+        }
+      }
+      wanted = ends;
+    }
+    // everything a sink that has not failed yet still depends on
+    Set<Controlled> needed = new HashSet<Controlled>();
+    LinkedList<Controlled> toVisit = new LinkedList<Controlled>();
+    for (Controlled sink : wanted) {
+      if (!sink.isCompleted() && needed.add(sink)) {
+        toVisit.add(sink);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      List<Controlled> preds = toVisit.removeFirst().getDependentJobs();
+      if (preds == null) {
+        continue;
+      }
+      for (Controlled pred : preds) {
+        if (this.members.contains(pred) && needed.add(pred)) {
+          toVisit.add(pred);
+        }
+      }
+    }
+
+    LinkedList<Controlled> changes = new LinkedList<Controlled>();
+    for (Controlled job : this.members) {
+      if (needed.contains(job) || job.isCompleted()
+          || this.cancelling.contains(job)
+          || this.submittingJobs.containsKey(job.getJobID())) {
+        continue;
+      }
+      State state = job.getJobState();
+      if (state == State.RUNNING) {
+        this.cancelling.add(job);
+        killUnneeded(job);
+      } else if (job.compareAndSetJobState(state, State.FAILED)) {
+        job.setFailureCause(new CancellationException());
+        job.setMessage("cancelled, as no wanted job needs it any more");
+        changes.add(job);
+      }
+    }
+    processStateChanges(changes);
+  }
+
+  private void killUnneeded(final Controlled job) {
+    Runnable kill = new Runnable() {
+      public void run() {
+        System.out.println("Killing " + job.getName()
+            + ", as no wanted job needs it any more");
+        try {
+          job.killJob();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+        if (job.compareAndSetJobState(State.RUNNING, State.FAILED)) {
+          job.setFailureCause(new CancellationException());
+          job.setMessage("killed, as no wanted job needs it any more");
+        }
+        // handled with the jobs whose submission completed
+        submittedJobs.add(job);
+        wakeUp();
+      }
+    };
+    if (this.submissionThreads <= 0 && this.submitter == null) {
+      new Thread(kill, "JobControl " + this.groupName + " kill").start();
+    } else {
+      getSubmitter().execute(kill);
+    }
+  }
+
+  /**
+   * Send a failed job back to READY if its retry policy allows another
+   * attempt. It is submitted again on the first pass after its backoff.
+   * 
+   * @return true if the job will be retried
+   */
+  private boolean scheduleRetry(Controlled job) {
+    RetryPolicy policy = job.getRetryPolicy();
+    if (policy == null
+        || job.getFailureCause() instanceof CancellationException) {
+      return false;
+    }
+    int failures = job.incrementFailedAttempts();
+    if (!policy.shouldRetry(failures, job.getFailureCause())
+        || !job.compareAndSetJobState(State.FAILED, State.READY)) {
+      return false;
+    }
+    long delay = policy.getDelayMillis(failures);
+    job.setRetryAt(System.currentTimeMillis() + delay);
+    job.setMessage("attempt " + failures + " failed, retrying in " + delay
+        + " ms. " + job.getMessage());
+    if (this.notificationListener != null) {
+      this.notificationListener.unregister(job);
+    }
+    release(job);
+    return true;
+  }
+
+  /**
+   * Move a job to the queue for its new state. The job is added to the new
+   * queue before it leaves the old one, so that a concurrent reader never
+   * sees it missing from both.
+   * 
+   * @return the state of the queue the job was in
+   */
+  private State moveToQueue(Controlled job, State newState) {
+    JobQueue to = getQueue(newState);
+    State oldState = null;
+    JobQueue from = null;
+    State[] queued = { State.WAITING, State.READY, State.RUNNING,
+        State.SUCCESS, State.FAILED };
+    for (State s : queued) {
+      JobQueue queue = getQueue(s);
+      if (queue.contains(job)) {
+        oldState = s;
+        from = queue;
+        break;
+      }
+    }
+    if (from == to) {
+      return oldState;
+    }
+    to.add(job);
+    if (from != null) {
+      from.remove(job);
+    }
+    if (job.isCompleted() && (from == null || !isFinishedQueue(from))) {
+      this.unfinishedJobs.decrementAndGet();
+    }
+    this.version.incrementAndGet();
+    return oldState;
+  }
+
+  private boolean isFinishedQueue(JobQueue queue) {
+    return queue == this.successfulJobs || queue == this.failedJobs;
+  }
+
   /**
    * @return the thread state
    */
@@ -189,6 +961,178 @@ public class JobControl implements Runnable {
    */
   public void stop() {
     this.runnerState = ThreadState.STOPPING;
+    wakeUp();
+  }
+
+  /**
+   * Stop the thread, and wait up to the given time for it to stop. Jobs not
+   * submitted yet are left as they are either way.
+   * 
+   * In GRACEFUL mode, no job is submitted any more and the thread stops once
+   * the running jobs have finished. In IMMEDIATE mode, all running jobs are
+   * killed at once, each on its own thread, and fail; a job whose submission
+   * is in flight is killed as soon as it is submitted.
+   * 
+   * @param mode whether to let the running jobs finish
+   * @param timeoutMillis how long to wait for the kills and for the thread
+   * @return the jobs killed, not killed, still running and not started
+   */
+  public StopReport stop(StopMode mode, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    StopReport report = new StopReport();
+    boolean started = this.runnerState != ThreadState.READY;
+    this.draining = true;
+    if (mode == StopMode.IMMEDIATE) {
+      List<Controlled> running = new ArrayList<Controlled>();
+      synchronized (this) {
+        this.killOnSubmit = true;
+        running.addAll(this.runningJobs.toList());
+        for (Controlled job : this.submittingJobs.values()) {
+          if (job.getJobState() == State.RUNNING) {
+            running.add(job); // submitted, but not moved yet
+          } else {
+            report.addNotKilled(job);
+          }
+        }
+      }
+      killStopped(running, deadline, report);
+      this.runnerState = ThreadState.STOPPING;
+    } else if (this.runnerState == ThreadState.SUSPENDED) {
+      this.runnerState = ThreadState.RUNNING;
+    }
+    if (!started) {
+      finish();
+    }
+    wakeUp();
+    synchronized (this.wakeup) {
+      long now = System.currentTimeMillis();
+      while (this.runnerState != ThreadState.STOPPED && now < deadline) {
+        this.wakeup.wait(deadline - now);
+        now = System.currentTimeMillis();
+      }
+    }
+    synchronized (this) {
+      report.setStopped(this.runnerState == ThreadState.STOPPED);
+      if (mode == StopMode.GRACEFUL) {
+        for (Controlled job : this.runningJobs.toList()) {
+          report.addStillRunning(job);
+        }
+      }
+      for (Controlled job : this.waitingJobs.toList()) {
+        report.addNotStarted(job);
+      }
+      for (Controlled job : this.readyJobs.toList()) {
+        if (!this.submittingJobs.containsKey(job.getJobID())) {
+          report.addNotStarted(job);
+        }
+      }
+    }
+    System.out.println("Group " + this.groupName + " " + report);
+    return report;
+  }
+
+  /**
+   * Kill the given running jobs concurrently, waiting for the kills until
+   * the deadline, and fail those killed.
+   */
+  private void killStopped(List<Controlled> running, long deadline,
+      StopReport report) throws InterruptedException {
+    if (running.isEmpty()) {
+      return;
+    }
+    List<Callable<Boolean>> kills = new ArrayList<Callable<Boolean>>();
+    for (final Controlled job : running) {
+      kills.add(new Callable<Boolean>() {
+        public Boolean call() {
+          return killStopped(job);
+        }
+      });
+    }
+    ExecutorService killers = Executors.newFixedThreadPool(running.size(),
+        new DaemonThreadFactory("JobControl " + this.groupName + " kill"));
+    List<Future<Boolean>> results;
+    try {
+      results = killers.invokeAll(kills, Math.max(0, deadline
+          - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    } finally {
+      killers.shutdownNow();
+    }
+    LinkedList<Controlled> changes = new LinkedList<Controlled>();
+    for (int i = 0; i < running.size(); i++) {
+      Controlled job = running.get(i);
+      boolean killed;
+      try {
+        killed = results.get(i).get();
+      } catch (CancellationException e) {
+        killed = false; // timed out
+      } catch (ExecutionException e) {
+        killed = false;
+      }
+      if (killed) {
+        report.addKilled(job);
+        changes.add(job);
+      } else {
+        report.addNotKilled(job);
+      }
+    }
+    synchronized (this) {
+      processStateChanges(changes);
+    }
+  }
+
+  /**
+   * Kill a running job on behalf of an immediate stop, and fail it.
+   * 
+   * @return true if the kill went through
+   */
+  private boolean killStopped(Controlled job) {
+    System.out.println("Killing " + job.getName() + ", as " + this.groupName
+        + " is stopping");
+    try {
+      job.killJob();
+    } catch (Exception e) {
+      e.printStackTrace();
+      return false;
+    }
+    if (job.compareAndSetJobState(State.RUNNING, State.FAILED)) {
+      job.setFailureCause(new CancellationException());
+      job.setMessage("killed, as " + this.groupName + " was stopped");
+    }
+    return true;
+  }
+
+  /**
+   * Stop a nested group whose job in its parent is being killed: kill its
+   * running jobs and fail them, then finish the group, as no pass over it
+   * will follow to do so. Jobs not submitted yet are left as they are.
+   */
+  void kill() throws InterruptedException {
+    List<Controlled> running = new ArrayList<Controlled>();
+    synchronized (this) {
+      this.draining = true;
+      this.killOnSubmit = true;
+      this.runnerState = ThreadState.STOPPING;
+      running.addAll(this.runningJobs.toList());
+      for (Controlled job : this.submittingJobs.values()) {
+        if (job.getJobState() == State.RUNNING) {
+          running.add(job); // submitted, but not moved yet
+        }
+      }
+    }
+    killStopped(running, Long.MAX_VALUE, new StopReport());
+    drainSubmittedJobs();
+    finish();
+  }
+
+  /**
+   * Have a draining group stop once its running jobs have finished.
+   */
+  synchronized private void stopIfDrained() {
+    if (this.runningJobs.isEmpty() && this.submittingJobs.isEmpty()
+        && isActive()) {
+      this.runnerState = ThreadState.STOPPING;
+    }
   }
 	
   /**
@@ -206,50 +1150,533 @@ public class JobControl implements Runnable {
   public void resume () {
     if (this.runnerState == ThreadState.SUSPENDED) {
       this.runnerState = ThreadState.RUNNING;
+      wakeUp();
     }
   }
 	
-  synchronized private void checkRunningJobs() 
+  /**
+   * Poll the running jobs that are due, without holding the JobControl lock
+   * while waiting on the status calls.
+   */
+  private void checkRunningJobs() 
       throws IOException, InterruptedException {
-		
-    Map<String, Controlled> oldJobs = null;
-    oldJobs = this.runningJobs;
-    this.runningJobs = new Hashtable<String, Controlled>();
-		
-    for (Controlled nextJob : oldJobs.values()) {
-      nextJob.checkState();
-      this.addToQueue(nextJob);
+    List<Controlled> changed = this.poller.poll(this.runningJobs.toList());
+    synchronized (this) {
+      processStateChanges(new LinkedList<Controlled>(changed));
     }
   }
 	
+  /**
+   * Kill the running jobs whose timeout has expired, and fail them, or
+   * retry them if their policy allows. The kills are made without holding
+   * the JobControl lock.
+   */
+  private void checkTimeouts() {
+    List<Controlled> expired = this.watchdog.expired(System
+        .currentTimeMillis());
+    if (expired.isEmpty()) {
+      return;
+    }
+    LinkedList<Controlled> changes = new LinkedList<Controlled>();
+    for (Controlled job : expired) {
+      String reason = job.getMessage();
+      System.out.println("Killing " + job.getName() + ", " + reason);
+      try {
+        job.killJob();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+      if (job.compareAndSetJobState(State.RUNNING, State.FAILED)) {
+        job.setFailureCause(new InterruptedIOException(reason));
+        job.setMessage(reason);
+      }
+      changes.add(job);
+    }
+    synchronized (this) {
+      processStateChanges(changes);
+    }
+  }
+
   synchronized private void checkWaitingJobs() 
       throws IOException, InterruptedException {
-    Map<String, Controlled> oldJobs = null;
-    oldJobs = this.waitingJobs;
-    this.waitingJobs = new Hashtable<String, Controlled>();
-		
-    for (Controlled nextJob : oldJobs.values()) {
-      nextJob.checkState();
-      this.addToQueue(nextJob);
+    LinkedList<Controlled> changes = new LinkedList<Controlled>();
+    List<Controlled> jobs = this.eventDriven ? this.polledJobs.toList()
+        : this.waitingJobs.toList();
+    for (Controlled nextJob : jobs) {
+      if (nextJob.getJobState() != State.WAITING) {
+        this.polledJobs.remove(nextJob);
+      } else if (nextJob.checkState() != State.WAITING) {
+        this.polledJobs.remove(nextJob);
+        changes.add(nextJob);
+      }
     }
+    processStateChanges(changes);
   }
 	
   synchronized private void startReadyJobs() {
-    Map<String, Controlled> oldJobs = null;
-    oldJobs = this.readyJobs;
-    this.readyJobs = new Hashtable<String, Controlled>();
-		
-    for (Controlled nextJob : oldJobs.values()) {
-      //Submitting Job to Hadoop
-      nextJob.submit();
-      this.addToQueue(nextJob);
-    }	
+    if (this.draining) {
+      return;
+    }
+    List<Controlled> ready = this.readyJobs.toList();
+    if (ready.size() > 1) {
+      if (this.criticalPathStale) {
+        updateCriticalPath();
+      }
+      Collections.sort(ready, this.criticalPath.order);
+    }
+    boolean urgent = !ready.isEmpty() && isDeadlineAtRisk();
+    long now = System.currentTimeMillis();
+    for (final Controlled nextJob : ready) {
+      if (this.submittingJobs.containsKey(nextJob.getJobID())) {
+        continue; // already being submitted
+      }
+      if (nextJob.getRetryAt() > now) {
+        continue; // backing off after a failed attempt
+      }
+      if (!admit(nextJob, urgent)) {
+        continue;
+      }
+      this.submittingJobs.put(nextJob.getJobID(), nextJob);
+      final Timing timing = getTiming(nextJob);
+      timing.submitAt = System.currentTimeMillis();
+      if (this.notificationListener != null
+          && nextJob instanceof ControlledJob) {
+        ((ControlledJob) nextJob).setEndNotificationUrl(
+            this.notificationListener.register(this, nextJob));
+      }
+      Runnable submission = new Runnable() {
+        public void run() {
+          try {
+            if (nextJob.getFailedAttempts() > 0) {
+              nextJob.setFailureCause(null); // of the earlier attempt
+              nextJob.prepareRetry();
+            }
+            //Submitting Job to Hadoop
+            nextJob.submit();
+            if (killOnSubmit && nextJob.getJobState() == State.RUNNING) {
+              killStopped(nextJob);
+            }
+          } catch (Throwable e) {
+            // including errors such as a missing client class, which would
+            // otherwise leave the job READY to be submitted again forever
+            nextJob.setFailureCause(e);
+            nextJob.setJobState(State.FAILED);
+            nextJob.setMessage(StringUtils.stringifyException(e));
+          } finally {
+            timing.submittedAt = System.currentTimeMillis();
+            submittedJobs.add(nextJob);
+            wakeUp();
+          }
+        }
+      };
+      if (this.submissionThreads <= 0 && this.submitter == null) {
+        submission.run();
+      } else {
+        getSubmitter().execute(submission);
+      }
+    }
+    drainSubmittedJobs();
+  }
+
+  private void updateCriticalPath() {
+    Map<Controlled, Long> costs = new HashMap<Controlled, Long>();
+    for (Controlled job : this.members) {
+      costs.put(job, getCost(job));
+    }
+    this.criticalPath.compute(this.members, costs);
+    this.criticalPathStale = false;
+  }
+
+  /**
+   * @return the expected cost of a job, one unit when it has neither a hint
+   *         nor a history
+   */
+  private long getCost(Controlled job) {
+    long estimate = getEstimate(job, false);
+    return estimate > 0 ? estimate : 1;
+  }
+
+  /**
+   * @param job a job of this group
+   * @return the expected cost of the longest path from the job to the end of
+   *         the group, including the job itself
+   */
+  public synchronized long getCriticalPathLength(Controlled job) {
+    if (this.criticalPathStale) {
+      updateCriticalPath();
+    }
+    return this.criticalPath.getLength(job);
+  }
+
+  /**
+   * Record run times in the given history, and use it to estimate how long
+   * jobs without a cost hint will take.
+   * 
+   * @param history the history to read and append to
+   */
+  public synchronized void setRuntimeHistory(RuntimeHistory history) {
+    this.history = history;
+    this.criticalPathStale = true;
+  }
+
+  /**
+   * Record the state transitions of this group's jobs in the given journal,
+   * and resume from it: jobs added afterwards that succeeded in an earlier
+   * run are marked SUCCESS without being submitted again, so that only the
+   * jobs that failed or never ran, and those depending on them, are rerun.
+   * Every job of the group must then have a key of its own. The journal is
+   * closed when the group stops, and cleared once all its jobs have
+   * succeeded, so that the next run with it starts from scratch.
+   * 
+   * @param journal the journal to resume from and append to
+   * @throws IllegalArgumentException if a job already added has no key, or
+   *         the same key as another
+   */
+  public synchronized void setJournal(WorkflowJournal journal) {
+    Set<String> keys = this.journalKeys;
+    this.journalKeys = new HashSet<String>();
+    if (journal != null) {
+      try {
+        for (Controlled job : this.members) {
+          checkKey(job);
+          this.journalKeys.add(job.getKey());
+        }
+      } catch (IllegalArgumentException e) {
+        this.journalKeys = keys;
+        throw e;
+      }
+    }
+    this.journal = journal;
+  }
+
+  /**
+   * Set the time by which this group should finish. While the projected
+   * finish time is later, the group takes precedence over other groups in
+   * the resource pools it shares with them.
+   * 
+   * @param deadline the deadline, in milliseconds since the epoch, or 0 for
+   *          none
+   */
+  public synchronized void setDeadline(long deadline) {
+    this.deadline = deadline;
+  }
+
+  /**
+   * @return true if the group has a deadline and is projected to miss it
+   */
+  public synchronized boolean isDeadlineAtRisk() {
+    return this.deadline > 0 && getProjectedFinishTime() > this.deadline;
+  }
+
+  /**
+   * Project when the group will finish: now plus the longest path of
+   * estimated remaining time through the unfinished jobs. Running jobs count
+   * as their estimate less the time they have run so far. Jobs with neither
+   * a cost hint nor a history count as zero, so the projection is a lower
+   * bound until every job has run once.
+   * 
+   * @return the projected finish time, in milliseconds since the epoch
+   */
+  public synchronized long getProjectedFinishTime() {
+    long now = System.currentTimeMillis();
+    List<Controlled> unfinished = new ArrayList<Controlled>();
+    Map<Controlled, Long> remaining = new HashMap<Controlled, Long>();
+    for (Controlled job : this.members) {
+      if (job.isCompleted()) {
+        continue;
+      }
+      long estimate;
+      Timing timing = this.timings.get(job);
+      if (job.getJobState() == State.RUNNING && timing != null
+          && timing.runningAt > 0) {
+        estimate = Math.max(0, getEstimate(job, false)
+            - (now - timing.runningAt));
+      } else {
+        estimate = Math.max(0, getEstimate(job, true));
+      }
+      unfinished.add(job);
+      remaining.put(job, estimate);
+    }
+    CriticalPath path = new CriticalPath();
+    path.compute(unfinished, remaining);
+    long longest = 0;
+    for (Controlled job : unfinished) {
+      longest = Math.max(longest, path.getLength(job));
+    }
+    return now + longest;
+  }
+
+  /**
+   * @param total whether to include the time spent queued and submitting
+   * @return the cost hint of the job, else its estimate from the history,
+   *         else -1
+   */
+  private long getEstimate(Controlled job, boolean total) {
+    if (job.getCostHint() > 0) {
+      return job.getCostHint();
+    }
+    if (this.history == null || job.getKey() == null) {
+      return -1;
+    }
+    return total ? this.history.getEstimatedTotalMillis(job.getKey())
+        : this.history.getEstimatedRunMillis(job.getKey());
+  }
+
+  private void recordTiming(Controlled job, State newState) {
+    long now = System.currentTimeMillis();
+    Timing timing = getTiming(job);
+    if (newState == State.READY) {
+      timing.readyAt = now;
+    } else if (newState == State.RUNNING) {
+      timing.runningAt = timing.submittedAt > 0 ? timing.submittedAt : now;
+    } else if (job.isCompleted()) {
+      this.timings.remove(job);
+      if (this.history == null || timing.runningAt == 0
+          || job.getKey() == null) {
+        return; // never ran, such as a job whose output was up to date
+      }
+      long submitted = timing.submittedAt > 0 ? timing.submittedAt : now;
+      try {
+        this.history.record(job.getKey(), newState, Math.max(0,
+            timing.submitAt - timing.readyAt), submitted - timing.submitAt,
+            now - (timing.runningAt > 0 ? timing.runningAt : submitted));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private Timing getTiming(Controlled job) {
+    Timing timing = this.timings.get(job);
+    if (timing == null) {
+      timing = new Timing();
+      this.timings.put(job, timing);
+    }
+    return timing;
+  }
+
+  /**
+   * Take room for a job in this group's limit, in the limits of the groups
+   * this one is nested in, and in its pool.
+   * 
+   * @return false if the job has to wait for running jobs to complete
+   */
+  private boolean admit(Controlled job, boolean urgent) {
+    int weight = job.getWeight();
+    if (this.runningWeight > 0
+        && this.runningWeight + weight > this.maxRunningJobs) {
+      return false;
+    }
+    JobControl outer = this.parent;
+    if (outer != null && !outer.admitNested(weight, this, urgent)) {
+      return false;
+    }
+    ResourcePool pool = job.getResourcePool() != null ? job.getResourcePool()
+        : this.resourcePool;
+    if (pool != null && !pool.tryAcquire(weight, this, urgent)) {
+      if (outer != null) {
+        outer.releaseNested(weight);
+      }
+      return false;
+    }
+    this.runningWeight += weight;
+    this.admittedJobs.put(job, new Admission(pool, weight, outer));
+    return true;
+  }
+
+  /**
+   * Give back the room taken by a job that has completed.
+   */
+  private void release(Controlled job) {
+    Admission admission = this.admittedJobs.remove(job);
+    if (admission == null) {
+      return;
+    }
+    this.runningWeight -= admission.weight;
+    if (admission.pool != null) {
+      admission.pool.release(admission.weight);
+    }
+    if (admission.outer != null) {
+      admission.outer.releaseNested(admission.weight);
+    }
+    wakeWaitingChildren();
+  }
+
+  /**
+   * Take room for a job of a nested group, as if it were one of ours.
+   * Locks are only ever taken from a nested group outwards.
+   * 
+   * @param child the nested group, woken once room is released
+   * @return false if the job has to wait
+   */
+  synchronized boolean admitNested(int weight, JobControl child,
+      boolean urgent) {
+    if (this.runningWeight > 0
+        && this.runningWeight + weight > this.maxRunningJobs) {
+      this.waitingChildren.add(child);
+      return false;
+    }
+    if (this.parent != null
+        && !this.parent.admitNested(weight, child, urgent)) {
+      return false;
+    }
+    if (this.resourcePool != null
+        && !this.resourcePool.tryAcquire(weight, child, urgent)) {
+      if (this.parent != null) {
+        this.parent.releaseNested(weight);
+      }
+      return false;
+    }
+    this.runningWeight += weight;
+    return true;
+  }
+
+  /**
+   * Give back the room taken by a completed job of a nested group.
+   */
+  synchronized void releaseNested(int weight) {
+    this.runningWeight -= weight;
+    if (this.resourcePool != null) {
+      this.resourcePool.release(weight);
+    }
+    if (this.parent != null) {
+      this.parent.releaseNested(weight);
+    }
+    wakeWaitingChildren();
+  }
+
+  private void wakeWaitingChildren() {
+    if (this.waitingChildren.isEmpty()) {
+      return;
+    }
+    List<JobControl> children = new ArrayList<JobControl>(this.waitingChildren);
+    this.waitingChildren.clear();
+    for (JobControl child : children) {
+      child.wakeUp();
+    }
+  }
+
+  /**
+   * Move the jobs whose submission has completed to the queue for their new
+   * state, typically RUNNING or FAILED.
+   */
+  synchronized private void drainSubmittedJobs() {
+    LinkedList<Controlled> changes = new LinkedList<Controlled>();
+    Controlled job;
+    while ((job = this.submittedJobs.poll()) != null) {
+      this.submittingJobs.remove(job.getJobID());
+      if (job.getJobState() != State.READY) {
+        changes.add(job);
+      }
+    }
+    processStateChanges(changes);
+  }
+
+  private ExecutorService getSubmitter() {
+    if (this.submitter == null) {
+      this.submitter = Executors.newFixedThreadPool(this.submissionThreads,
+          new DaemonThreadFactory("JobControl " + this.groupName + " submitter"));
+      this.ownSubmitter = true;
+    }
+    return this.submitter;
+  }
+
+  /**
+   * Wake the JobControl thread, or have the scheduler driving this group
+   * run it, ahead of its next poll.
+   */
+  void wakeUp() {
+    synchronized (this.wakeup) {
+      this.wakeupRequested = true;
+      this.wakeup.notifyAll();
+    }
+    JobControlScheduler current = this.scheduler;
+    if (current != null) {
+      current.wakeUp(this);
+    }
+    JobControl outer = this.parent;
+    if (outer != null) {
+      outer.wakeUp();
+    }
+  }
+
+  /**
+   * Hand this group to a shared scheduler instead of running it on its own
+   * thread, using the scheduler's pools unless others were set.
+   */
+  synchronized void startScheduled(JobControlScheduler scheduler,
+      ExecutorService submission, ExecutorService status) {
+    if (this.submitter == null && this.submissionThreads > 0) {
+      this.submitter = submission;
+      this.ownSubmitter = false;
+      this.sharedSubmitter = true;
+    }
+    this.poller.setExecutor(status);
+    this.scheduler = scheduler;
+    this.draining = false;
+    this.killOnSubmit = false;
+    this.runnerState = ThreadState.RUNNING;
+  }
+
+  /**
+   * Run this group as a job of another group, which makes a pass over it
+   * each time it checks the job's status. Its jobs are polled as often as
+   * the parent's, on the thread making the pass, and submitted on the
+   * parent's submission pool unless another was set.
+   */
+  synchronized void startNested(JobControl parent) {
+    this.pollIntervalMillis = parent.getPollIntervalMillis();
+    this.maxPollIntervalMillis = parent.maxPollIntervalMillis;
+    this.poller.setIntervals(this.pollIntervalMillis,
+        this.maxPollIntervalMillis);
+    if (this.submitter == null && this.submissionThreads > 0) {
+      ExecutorService shared = parent.getSharedSubmitter();
+      if (shared != null) {
+        this.submitter = shared;
+        this.ownSubmitter = false;
+        this.sharedSubmitter = true;
+      }
+    }
+    this.poller.setInline(true);
+    this.parent = parent;
+    this.draining = false;
+    this.killOnSubmit = false;
+    this.runnerState = ThreadState.RUNNING;
+  }
+
+  /**
+   * @return the pool submitting our jobs, or null if they are submitted on
+   *         the thread running this group
+   */
+  private synchronized ExecutorService getSharedSubmitter() {
+    if (this.submissionThreads <= 0 && this.submitter == null) {
+      return null;
+    }
+    return getSubmitter();
+  }
+
+  /**
+   * @return true while the thread state lets the group keep running
+   */
+  boolean isActive() {
+    return this.runnerState == ThreadState.RUNNING
+        || this.runnerState == ThreadState.SUSPENDED;
+  }
+
+  /**
+   * Sleep for the poll interval, or until woken by {@link #wakeUp()}.
+   */
+  private void waitForWakeUp() throws InterruptedException {
+    synchronized (this.wakeup) {
+      if (!this.wakeupRequested) {
+        this.wakeup.wait(pollIntervalMillis);
+      }
+      this.wakeupRequested = false;
+    }
   }
 	
-  synchronized public boolean allFinished() {
-    return this.waitingJobs.size() == 0 &&
-      this.readyJobs.size() == 0 &&
-      this.runningJobs.size() == 0;
+  public boolean allFinished() {
+    return this.unfinishedJobs.get() == 0;
   }
 	
   /**
@@ -260,39 +1687,132 @@ public class JobControl implements Runnable {
    *  	Submit the jobs in ready state
    */
   public void run() {
+    this.draining = false;
+    this.killOnSubmit = false;
     this.runnerState = ThreadState.RUNNING;
     while (true) {
       while (this.runnerState == ThreadState.SUSPENDED) {
         try {
-          Thread.sleep(pollIntervalMillis);
+          waitForWakeUp();
         }
         catch (Exception e) {
 					
         }
       }
-      try {
-        checkRunningJobs();	
-        checkWaitingJobs();
-        startReadyJobs();
-      } catch (Exception e) {
-  	    this.runnerState = ThreadState.STOPPED;
-      }
-      if (this.runnerState != ThreadState.RUNNING && 
-          this.runnerState != ThreadState.SUSPENDED) {
+      tick();
+      if (!isActive()) {
         break;
       }
       try {
-        Thread.sleep(pollIntervalMillis);
+        waitForWakeUp();
       }
       catch (Exception e) {
 				
       }
-      if (this.runnerState != ThreadState.RUNNING && 
-          this.runnerState != ThreadState.SUSPENDED) {
+      if (!isActive()) {
         break;
       }
     }
+    finish();
+  }
+
+  /**
+   * Make one pass over the jobs of this group: move the jobs whose
+   * submission completed, check the running jobs that are due, update the
+   * waiting jobs and submit the ready ones.
+   */
+  void tick() {
+    long tickStart = System.currentTimeMillis();
+    try {
+      drainSubmittedJobs();
+      checkRunningJobs();	
+      checkTimeouts();
+      checkWaitingJobs();
+      startReadyJobs();
+      if (this.draining) {
+        stopIfDrained();
+      }
+    } catch (Exception e) {
+      this.runnerState = ThreadState.STOPPED;
+    }
+    flushJournal();
+    this.lastTickMillis = System.currentTimeMillis() - tickStart;
+    this.maxTickMillis = Math.max(this.maxTickMillis, this.lastTickMillis);
+  }
+
+  /**
+   * Write the transitions of the last pass to the journal, outside the
+   * JobControl lock.
+   */
+  private void flushJournal() {
+    WorkflowJournal current;
+    synchronized (this) {
+      current = this.journal;
+    }
+    if (current != null) {
+      try {
+        current.flush();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Release the pools owned by this group once it stops being driven, and
+   * give back the room still held by jobs that did not complete, so that it
+   * is not lost to the groups sharing our limits and pools. The journal is
+   * closed, or cleared if every job succeeded.
+   */
+  void finish() {
+    WorkflowJournal current;
+    boolean succeeded;
+    synchronized (this) {
+      for (Controlled job : new ArrayList<Controlled>(this.admittedJobs
+          .keySet())) {
+        release(job);
+      }
+      if (this.ownSubmitter) {
+        // lets submissions in flight finish
+        this.submitter.shutdown();
+        this.submitter = null;
+        this.ownSubmitter = false;
+      }
+      if (this.sharedSubmitter) {
+        this.submitter = null;
+        this.sharedSubmitter = false;
+      }
+      if (this.scheduler != null) {
+        this.poller.setExecutor(null);
+        this.scheduler = null;
+      }
+      if (this.parent != null) {
+        this.poller.setInline(false);
+        this.parent = null;
+      }
+      if (this.completion != null) {
+        // stopped before all jobs finished
+        this.completion.set(false);
+      }
+      current = this.journal;
+      succeeded = allFinished() && this.failedJobs.isEmpty();
+    }
+    this.poller.shutdown();
+    if (current != null) {
+      try {
+        if (succeeded) {
+          current.complete();
+        } else {
+          current.close();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
     this.runnerState = ThreadState.STOPPED;
+    synchronized (this.wakeup) {
+      this.wakeup.notifyAll(); // for stop(StopMode, long)
+    }
   }
 
   public void waitForCompletion() throws InterruptedException {
@@ -301,13 +1821,17 @@ public class JobControl implements Runnable {
 
   public void waitForCompletion(long intervalMillis)
       throws InterruptedException {
-    pollIntervalMillis = intervalMillis;
-    new Thread(this).start();
-    // spin while the JobControl is working
-    while (!this.allFinished()) {
-      Thread.sleep(intervalMillis);
+    setPollIntervalMillis(intervalMillis);
+    this.runnerState = ThreadState.RUNNING; // not STOPPED from an earlier run
+    Thread runner = new Thread(this);
+    runner.start();
+    try {
+      getCompletionFuture().get();
+    } catch (ExecutionException e) {
+      // the group future is never completed exceptionally
     }
     this.stop();
+    runner.join(); // until the journal is closed
   }
 
 }
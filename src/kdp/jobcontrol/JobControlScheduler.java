@@ -0,0 +1,197 @@
+package kdp.jobcontrol;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kdp.jobcontrol.JobControl.ThreadState;
+
+/**
+ * Drives any number of JobControl groups from a fixed set of threads,
+ * instead of giving each group its own thread and poll loop.
+ *
+ * Each group is queued with the time its next pass is due, one poll
+ * interval after the previous one, or straight away when it is woken by a
+ * submission or a job-end notification. Groups due at the same time are
+ * run in the order they were queued, so every group gets its turn. A group
+ * is only ever run by one thread at a time, and is dropped once all its
+ * jobs have finished or it is stopped.
+ *
+ * The groups share the scheduler's pools for job submission and status
+ * polling, unless they were given their own.
+ */
+public class JobControlScheduler {
+
+  private final DelayQueue<Turn> queue;
+  private final Map<JobControl, Turn> queued;
+  private final Map<JobControl, Boolean> running;
+  private final AtomicLong sequence;
+  private final Thread[] workers;
+  private final ExecutorService submitter;
+  private final ExecutorService poller;
+  private volatile boolean shutdown;
+
+  /**
+   * A group waiting for its next pass.
+   */
+  private class Turn implements Delayed {
+    final JobControl group;
+    final long due;
+    final long seq;
+
+    Turn(JobControl group, long due) {
+      this.group = group;
+      this.due = due;
+      this.seq = sequence.incrementAndGet();
+    }
+
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(due - System.currentTimeMillis(),
+          TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo(Delayed o) {
+      Turn other = (Turn) o;
+      if (due != other.due) {
+        return due < other.due ? -1 : 1;
+      }
+      return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+    }
+  }
+
+  /**
+   * Create a scheduler with its own pools for submission and status checks.
+   *
+   * @param threads
+   *          the number of threads running passes over the groups
+   * @param ioThreads
+   *          the number of threads submitting jobs, and the number checking
+   *          their status, shared by all the groups
+   */
+  public JobControlScheduler(int threads, int ioThreads) {
+    this.queue = new DelayQueue<Turn>();
+    this.queued = new HashMap<JobControl, Turn>();
+    this.running = new HashMap<JobControl, Boolean>();
+    this.sequence = new AtomicLong();
+    this.submitter = Executors.newFixedThreadPool(ioThreads,
+        new DaemonThreadFactory("JobControlScheduler submitter"));
+    this.poller = Executors.newFixedThreadPool(ioThreads,
+        new DaemonThreadFactory("JobControlScheduler poller"));
+    DaemonThreadFactory factory = new DaemonThreadFactory("JobControlScheduler");
+    this.workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      this.workers[i] = factory.newThread(new Runnable() {
+        public void run() {
+          work();
+        }
+      });
+      this.workers[i].start();
+    }
+  }
+
+  /**
+   * Start running a group on this scheduler.
+   *
+   * @param group
+   *          a group that is not already running
+   * @return the future of the group, completed once all its jobs finish
+   */
+  public JobFuture<Boolean> schedule(JobControl group) {
+    if (this.shutdown) {
+      throw new IllegalStateException("scheduler has been shut down");
+    }
+    synchronized (this) {
+      if (this.queued.containsKey(group) || this.running.containsKey(group)) {
+        throw new IllegalStateException("group is already scheduled");
+      }
+      this.running.put(group, Boolean.FALSE);
+    }
+    // outside our lock, as a group wakes its scheduler with its own held
+    group.startScheduled(this, this.submitter, this.poller);
+    synchronized (this) {
+      this.running.remove(group);
+      enqueue(group, System.currentTimeMillis());
+    }
+    return group.getCompletionFuture();
+  }
+
+  /**
+   * @return the number of groups being driven by this scheduler
+   */
+  public synchronized int getGroupCount() {
+    return this.queued.size() + this.running.size();
+  }
+
+  /**
+   * Stop running passes and shut the shared pools down. Groups still
+   * scheduled are left as they are; their jobs keep running on the cluster.
+   */
+  public void shutdown() {
+    this.shutdown = true;
+    for (Thread worker : this.workers) {
+      worker.interrupt();
+    }
+    this.submitter.shutdown();
+    this.poller.shutdown();
+  }
+
+  /**
+   * Bring the next pass of a group forward to now.
+   */
+  synchronized void wakeUp(JobControl group) {
+    if (this.running.containsKey(group)) {
+      this.running.put(group, Boolean.TRUE);
+      return;
+    }
+    Turn turn = this.queued.get(group);
+    if (turn != null && turn.due > System.currentTimeMillis()
+        && this.queue.remove(turn)) {
+      enqueue(group, System.currentTimeMillis());
+    }
+  }
+
+  private void enqueue(JobControl group, long due) {
+    Turn turn = new Turn(group, due);
+    this.queued.put(group, turn);
+    this.queue.add(turn);
+  }
+
+  private void work() {
+    while (!this.shutdown) {
+      Turn turn;
+      try {
+        turn = this.queue.take();
+      } catch (InterruptedException e) {
+        continue;
+      }
+      JobControl group = turn.group;
+      synchronized (this) {
+        this.queued.remove(group);
+        this.running.put(group, Boolean.FALSE);
+      }
+      boolean done = !group.isActive() || group.allFinished();
+      if (!done) {
+        if (group.getThreadState() != ThreadState.SUSPENDED) {
+          group.tick();
+        }
+        done = !group.isActive() || group.allFinished();
+      }
+      synchronized (this) {
+        boolean woken = this.running.remove(group);
+        if (!done) {
+          long now = System.currentTimeMillis();
+          enqueue(group, woken ? now : now + group.getPollIntervalMillis());
+        }
+      }
+      if (done) {
+        group.finish();
+      }
+    }
+  }
+
+}
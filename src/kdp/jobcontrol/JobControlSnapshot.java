@@ -0,0 +1,64 @@
+package kdp.jobcontrol;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable view of the jobs of a JobControl group in each state. The
+ * version increases with every state change the group records, so two
+ * snapshots with the same version hold the same jobs.
+ */
+public class JobControlSnapshot {
+
+  private final long version;
+  private final List<Controlled> waitingJobs;
+  private final List<Controlled> readyJobs;
+  private final List<Controlled> runningJobs;
+  private final List<Controlled> successfulJobs;
+  private final List<Controlled> failedJobs;
+
+  JobControlSnapshot(long version, List<Controlled> waitingJobs,
+      List<Controlled> readyJobs, List<Controlled> runningJobs,
+      List<Controlled> successfulJobs, List<Controlled> failedJobs) {
+    this.version = version;
+    this.waitingJobs = Collections.unmodifiableList(waitingJobs);
+    this.readyJobs = Collections.unmodifiableList(readyJobs);
+    this.runningJobs = Collections.unmodifiableList(runningJobs);
+    this.successfulJobs = Collections.unmodifiableList(successfulJobs);
+    this.failedJobs = Collections.unmodifiableList(failedJobs);
+  }
+
+  /**
+   * @return the number of state changes recorded before this snapshot
+   */
+  public long getVersion() {
+    return this.version;
+  }
+
+  public List<Controlled> getWaitingJobs() {
+    return this.waitingJobs;
+  }
+
+  public List<Controlled> getReadyJobs() {
+    return this.readyJobs;
+  }
+
+  public List<Controlled> getRunningJobs() {
+    return this.runningJobs;
+  }
+
+  /**
+   * @return the jobs in the SUCCESS or SKIPPED state
+   */
+  public List<Controlled> getSuccessfulJobs() {
+    return this.successfulJobs;
+  }
+
+  /**
+   * @return the jobs in the FAILED or DEPENDENT_FAILED state
+   */
+  public List<Controlled> getFailedJobs() {
+    return this.failedJobs;
+  }
+
+}
@@ -0,0 +1,154 @@
+package kdp.jobcontrol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded HTTP listener for Hadoop job-end notifications. A JobControl
+ * using a listener registers its URL as the end-notification URL of each
+ * ControlledJob it submits, so a finished job wakes the JobControl thread
+ * straight away instead of waiting for its next poll. Status polling still
+ * runs as a fallback, in case a notification is lost.
+ *
+ * One listener can serve any number of JobControl groups. Each submission
+ * is registered under a token of its own, as neither group names nor the
+ * job IDs derived from them are unique across groups.
+ */
+public class JobEndNotificationListener {
+
+  /** Hadoop property holding the URL called when a job ends. */
+  public static final String END_NOTIFICATION_URL = "job.end.notification.url";
+
+  private static final String CONTEXT = "/jobcontrol/end";
+
+  private final String host;
+  private final int port;
+  private HttpServer server;
+  // the job each token was handed out for, and the token of each job
+  private final Map<String, Registration> registrations;
+  private final Map<Controlled, String> tokens;
+  private final AtomicLong nextToken;
+
+  private static class Registration {
+    final JobControl group;
+    final Controlled job;
+
+    Registration(JobControl group, Controlled job) {
+      this.group = group;
+      this.job = job;
+    }
+  }
+
+  /**
+   * Listen on the given port of this host, advertising the canonical host
+   * name of the local machine.
+   *
+   * @param port
+   *          the port to listen on, or 0 for any free port
+   */
+  public JobEndNotificationListener(int port) throws IOException {
+    this(InetAddress.getLocalHost().getCanonicalHostName(), port);
+  }
+
+  /**
+   * @param host
+   *          the host name the JobTracker should use to reach this listener
+   * @param port
+   *          the port to listen on, or 0 for any free port
+   */
+  public JobEndNotificationListener(String host, int port) {
+    this.host = host;
+    this.port = port;
+    this.registrations = new ConcurrentHashMap<String, Registration>();
+    this.tokens = new ConcurrentHashMap<Controlled, String>();
+    this.nextToken = new AtomicLong();
+  }
+
+  public synchronized void start() throws IOException {
+    if (this.server != null) {
+      return;
+    }
+    this.server = HttpServer.create(new InetSocketAddress(this.port), 0);
+    this.server.createContext(CONTEXT, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String id = getParameter(exchange.getRequestURI().getRawQuery(), "id");
+        Registration registration = id == null ? null : registrations
+            .get(id);
+        if (registration != null) {
+          registration.group.jobEnded(registration.job.getJobID());
+        }
+        exchange.sendResponseHeaders(registration != null ? 200 : 404, -1);
+        OutputStream out = exchange.getResponseBody();
+        out.close();
+      }
+    });
+    this.server.start();
+  }
+
+  public synchronized void stop() {
+    if (this.server != null) {
+      this.server.stop(0);
+      this.server = null;
+    }
+  }
+
+  /**
+   * @return the port the listener is bound to
+   */
+  public synchronized int getPort() {
+    return this.server == null ? this.port : this.server.getAddress().getPort();
+  }
+
+  /**
+   * Route notifications for a job to its group.
+   *
+   * @return the end-notification URL for the job
+   */
+  String register(JobControl group, Controlled job) {
+    unregister(job);
+    String token = Long.toString(this.nextToken.incrementAndGet());
+    this.registrations.put(token, new Registration(group, job));
+    this.tokens.put(job, token);
+    try {
+      return "http://" + this.host + ":" + getPort() + CONTEXT + "?id="
+          + URLEncoder.encode(token, "UTF-8")
+          + "&jobId=$jobId&status=$jobStatus";
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  void unregister(Controlled job) {
+    String token = this.tokens.remove(job);
+    if (token != null) {
+      this.registrations.remove(token);
+    }
+  }
+
+  private static String getParameter(String query, String name)
+      throws UnsupportedEncodingException {
+    if (query == null) {
+      return null;
+    }
+    for (String pair : query.split("&")) {
+      int eq = pair.indexOf('=');
+      if (eq > 0 && pair.substring(0, eq).equals(name)) {
+        return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,95 @@
+package kdp.jobcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The eventual outcome of a job, or of a whole JobControl group. Callers can
+ * block on it with {@link #get()}, or register callbacks that run once it
+ * completes. It cannot be cancelled; stop the JobControl or kill the job
+ * instead.
+ */
+public class JobFuture<T> implements Future<T> {
+
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile T value;
+  private List<Runnable> listeners = new ArrayList<Runnable>();
+
+  /**
+   * Complete this future, running the registered callbacks.
+   * 
+   * @return false if it had already completed
+   */
+  boolean set(T value) {
+    List<Runnable> toRun;
+    synchronized (this) {
+      if (isDone()) {
+        return false;
+      }
+      this.value = value;
+      this.done.countDown();
+      toRun = this.listeners;
+      this.listeners = null;
+    }
+    for (Runnable listener : toRun) {
+      listener.run();
+    }
+    return true;
+  }
+
+  /**
+   * Run a callback on the given executor once this future completes, or
+   * straight away if it already has.
+   * 
+   * @param listener
+   *          the callback
+   * @param executor
+   *          the executor to run the callback on
+   */
+  public void addListener(final Runnable listener, final Executor executor) {
+    Runnable task = new Runnable() {
+      public void run() {
+        executor.execute(listener);
+      }
+    };
+    synchronized (this) {
+      if (!isDone()) {
+        this.listeners.add(task);
+        return;
+      }
+    }
+    task.run();
+  }
+
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  public boolean isCancelled() {
+    return false;
+  }
+
+  public boolean isDone() {
+    return this.done.getCount() == 0;
+  }
+
+  public T get() throws InterruptedException, ExecutionException {
+    this.done.await();
+    return this.value;
+  }
+
+  public T get(long timeout, TimeUnit unit) throws InterruptedException,
+      ExecutionException, TimeoutException {
+    if (!this.done.await(timeout, unit)) {
+      throw new TimeoutException();
+    }
+    return this.value;
+  }
+
+}
@@ -0,0 +1,57 @@
+package kdp.jobcontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The jobs of a JobControl group in one state, keyed by job ID. Reads never
+ * block, iteration is weakly consistent, and the size is kept in a counter
+ * so that it is always O(1).
+ */
+class JobQueue {
+
+  private final ConcurrentHashMap<String, Controlled> jobs;
+  private final AtomicInteger size;
+
+  JobQueue() {
+    this.jobs = new ConcurrentHashMap<String, Controlled>();
+    this.size = new AtomicInteger();
+  }
+
+  void add(Controlled job) {
+    if (this.jobs.put(job.getJobID(), job) == null) {
+      this.size.incrementAndGet();
+    }
+  }
+
+  boolean remove(Controlled job) {
+    if (this.jobs.remove(job.getJobID()) != null) {
+      this.size.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  boolean contains(Controlled job) {
+    return this.jobs.containsKey(job.getJobID());
+  }
+
+  Controlled get(String jobID) {
+    return this.jobs.get(jobID);
+  }
+
+  int size() {
+    return this.size.get();
+  }
+
+  boolean isEmpty() {
+    return size() == 0;
+  }
+
+  List<Controlled> toList() {
+    return new ArrayList<Controlled>(this.jobs.values());
+  }
+
+}
@@ -0,0 +1,25 @@
+package kdp.jobcontrol;
+
+import kdp.jobcontrol.Controlled.State;
+
+/**
+ * Receives the state transitions of the jobs in a JobControl group.
+ * Notifications are delivered on a separate thread, in the order the
+ * transitions were observed, so a listener may block without holding up
+ * the JobControl thread.
+ */
+public interface JobStateListener {
+
+  /**
+   * Called after a job has moved from one state to another.
+   * 
+   * @param job
+   *          the job whose state changed
+   * @param oldState
+   *          the state the job was in
+   * @param newState
+   *          the state the job is now in
+   */
+  void stateChanged(Controlled job, State oldState, State newState);
+
+}
@@ -35,6 +35,11 @@ public class OptionalDelete extends ControlledFSAction {
     this.recursive = recursive;
   }
 
+  @Override
+  protected String getDefaultKey() {
+    return "delete " + path;
+  }
+
   @Override
   protected void execute() throws IOException, InterruptedException {
     System.out.println("Deleting " + path + (recursive ? " recursively" : ""));
@@ -41,6 +41,11 @@ public class OptionalRename extends ControlledFSAction {
     this.to = to;
   }
 
+  @Override
+  protected String getDefaultKey() {
+    return "rename " + from + " " + to;
+  }
+
   @Override
   protected void execute() throws IOException, InterruptedException {
     System.out.println("Renaming " + from + " to " + to);
@@ -0,0 +1,224 @@
+package kdp.jobcontrol;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+/**
+ * A digest of everything a job's output is made from: the name, length and
+ * modification time of every input file, the values of chosen configuration
+ * keys, and the job jar. It is stored next to the output directory, in a file
+ * named after it, along with the job's counters, so that an unchanged job can
+ * be skipped with its counters still available to the jobs after it.
+ *
+ * Input directories are listed one level at a time, each level in parallel,
+ * as a listing of many directories is mostly spent waiting on the namenode.
+ */
+class OutputFingerprint {
+
+  private static final String SUFFIX = ".fingerprint";
+
+  private final String digest;
+
+  private OutputFingerprint(String digest) {
+    this.digest = digest;
+  }
+
+  /**
+   * Fingerprint the inputs of a job.
+   *
+   * @param job
+   *          the job, fully configured
+   * @param keys
+   *          the configuration keys the output depends on
+   * @param threads
+   *          the number of directories listed at once
+   */
+  static OutputFingerprint compute(Job job, List<String> keys, int threads)
+      throws IOException, InterruptedException {
+    Configuration conf = job.getConfiguration();
+    List<String> entries = new ArrayList<String>();
+    ExecutorService pool = Executors.newFixedThreadPool(threads,
+        new DaemonThreadFactory("fingerprint " + job.getJobName()));
+    try {
+      for (Path input : FileInputFormat.getInputPaths(job)) {
+        entries.add("input\t" + input);
+        list(input.getFileSystem(conf), input, pool, entries);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    for (String key : keys) {
+      entries.add("conf\t" + key + "\t" + conf.get(key));
+    }
+    String jar = job.getJar();
+    if (jar != null) {
+      Path jarPath = new Path(jar);
+      try {
+        FileStatus status = jarPath.getFileSystem(conf).getFileStatus(jarPath);
+        entries.add("jar\t" + jar + "\t" + status.getLen() + "\t"
+            + status.getModificationTime());
+      } catch (FileNotFoundException e) {
+        entries.add("jar\t" + jar);
+      }
+    }
+    Collections.sort(entries);
+    try {
+      MessageDigest md5 = MessageDigest.getInstance("MD5");
+      for (String entry : entries) {
+        md5.update(entry.getBytes("UTF-8"));
+        md5.update((byte) '\n');
+      }
+      StringBuilder hex = new StringBuilder();
+      for (byte b : md5.digest()) {
+        hex.append(String.format("%02x", b & 0xff));
+      }
+      return new OutputFingerprint(hex.toString());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static void list(final FileSystem fs, Path input,
+      ExecutorService pool, List<String> entries) throws IOException,
+      InterruptedException {
+    FileStatus[] matches = fs.globStatus(input);
+    List<FileStatus> level = new ArrayList<FileStatus>();
+    if (matches != null) {
+      Collections.addAll(level, matches);
+    }
+    while (!level.isEmpty()) {
+      List<Callable<FileStatus[]>> listings =
+          new ArrayList<Callable<FileStatus[]>>();
+      for (final FileStatus status : level) {
+        if (status.isDir()) {
+          listings.add(new Callable<FileStatus[]>() {
+            public FileStatus[] call() throws IOException {
+              return fs.listStatus(status.getPath());
+            }
+          });
+        } else {
+          entries.add("file\t" + status.getPath() + "\t" + status.getLen()
+              + "\t" + status.getModificationTime());
+        }
+      }
+      level = new ArrayList<FileStatus>();
+      for (Future<FileStatus[]> listing : pool.invokeAll(listings)) {
+        try {
+          FileStatus[] children = listing.get();
+          if (children != null) {
+            Collections.addAll(level, children);
+          }
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IOException(e.getCause());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the file the fingerprint of a job's output is stored in
+   */
+  static Path getPath(Job job) {
+    Path output = FileOutputFormat.getOutputPath(job);
+    if (output == null) {
+      return null;
+    }
+    return new Path(output.getParent(), "." + output.getName() + SUFFIX);
+  }
+
+  /**
+   * Compare this fingerprint to the one stored for the job's output.
+   *
+   * @return the counters stored with the fingerprint if it matches and the
+   *         output still exists, null otherwise
+   */
+  Map<String, Long> match(Job job) throws IOException {
+    Path path = getPath(job);
+    if (path == null) {
+      return null;
+    }
+    FileSystem fs = path.getFileSystem(job.getConfiguration());
+    if (!fs.exists(path) || !fs.exists(FileOutputFormat.getOutputPath(job))) {
+      return null;
+    }
+    BufferedReader in = new BufferedReader(new InputStreamReader(fs.open(path),
+        "UTF-8"));
+    try {
+      if (!this.digest.equals(in.readLine())) {
+        return null;
+      }
+      Map<String, Long> counters = new HashMap<String, Long>();
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (fields.length != 3) {
+          return null;
+        }
+        try {
+          counters.put(ControlledJob.counterKey(fields[0], fields[1]), Long
+              .parseLong(fields[2]));
+        } catch (NumberFormatException e) {
+          return null;
+        }
+      }
+      return counters;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Store this fingerprint and the counters of the job that just made the
+   * output.
+   */
+  void save(Job job, CounterValues counters) throws IOException {
+    Path path = getPath(job);
+    if (path == null) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder(this.digest).append('\n');
+    for (int i = 0; i < counters.size(); i++) {
+      sb.append(clean(counters.getGroupName(i))).append('\t').append(
+          clean(counters.getCounterName(i))).append('\t').append(
+          counters.getValue(i)).append('\n');
+    }
+    FSDataOutputStream out = path.getFileSystem(job.getConfiguration())
+        .create(path, true);
+    try {
+      out.write(sb.toString().getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static String clean(String name) {
+    return name.replace('\t', ' ').replace('\n', ' ');
+  }
+
+}
@@ -0,0 +1,164 @@
+package kdp.jobcontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named limit on the total weight of the jobs running at once, shared by
+ * every JobControl group whose jobs are assigned to it. A job's weight is
+ * typically the number of slots it is expected to take; by default each
+ * job counts as one.
+ *
+ * A job heavier than the whole capacity is still admitted when nothing else
+ * holds the pool, so that it cannot wait forever.
+ *
+ * Groups whose deadline is at risk take precedence: while one of them is
+ * waiting for room, other groups are only admitted into an empty pool. A
+ * group's claim lapses if it has not asked again for a while.
+ */
+public class ResourcePool {
+
+  private static final long URGENT_CLAIM_MILLIS = 30000;
+
+  private static final Map<String, ResourcePool> POOLS =
+      new ConcurrentHashMap<String, ResourcePool>();
+
+  private final String name;
+  private int capacity;
+  private int used;
+  private final Set<JobControl> waiting;
+  // groups with a deadline at risk waiting for room, and when they last asked
+  private final Map<JobControl, Long> urgent;
+
+  /**
+   * Get the pool with the given name, creating it with unlimited capacity if
+   * it does not exist yet.
+   *
+   * @param name
+   *          the name of the pool
+   * @return the pool shared by everyone using that name
+   */
+  public static ResourcePool get(String name) {
+    synchronized (POOLS) {
+      ResourcePool pool = POOLS.get(name);
+      if (pool == null) {
+        pool = new ResourcePool(name, Integer.MAX_VALUE);
+        POOLS.put(name, pool);
+      }
+      return pool;
+    }
+  }
+
+  /**
+   * Create a pool that is not registered under its name.
+   *
+   * @param name
+   *          the name of the pool
+   * @param capacity
+   *          the maximum total weight of the jobs running at once
+   */
+  public ResourcePool(String name, int capacity) {
+    this.name = name;
+    this.capacity = capacity;
+    this.waiting = new LinkedHashSet<JobControl>();
+    this.urgent = new HashMap<JobControl, Long>();
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  /**
+   * Change the capacity of this pool. Running jobs are not affected.
+   *
+   * @param capacity
+   *          the maximum total weight of the jobs running at once
+   */
+  public void setCapacity(int capacity) {
+    List<JobControl> toWake;
+    synchronized (this) {
+      this.capacity = capacity;
+      toWake = takeWaiting();
+    }
+    wake(toWake);
+  }
+
+  public synchronized int getCapacity() {
+    return this.capacity;
+  }
+
+  /**
+   * @return the total weight of the jobs currently admitted
+   */
+  public synchronized int getUsed() {
+    return this.used;
+  }
+
+  /**
+   * Admit a job of the given weight if there is room for it. Otherwise the
+   * group is woken once some weight is released.
+   *
+   * @param urgent
+   *          whether the group's deadline is at risk
+   * @return true if the job was admitted
+   */
+  synchronized boolean tryAcquire(int weight, JobControl group,
+      boolean urgent) {
+    long now = System.currentTimeMillis();
+    boolean full = this.used > 0 && this.used + weight > this.capacity;
+    boolean deferred = !urgent && this.used > 0 && hasUrgentClaims(now);
+    if (full || deferred) {
+      this.waiting.add(group);
+      if (urgent) {
+        this.urgent.put(group, now);
+      }
+      return false;
+    }
+    this.urgent.remove(group);
+    this.used += weight;
+    return true;
+  }
+
+  private boolean hasUrgentClaims(long now) {
+    Iterator<Long> it = this.urgent.values().iterator();
+    while (it.hasNext()) {
+      if (now - it.next() > URGENT_CLAIM_MILLIS) {
+        it.remove();
+      }
+    }
+    return !this.urgent.isEmpty();
+  }
+
+  void release(int weight) {
+    List<JobControl> toWake;
+    synchronized (this) {
+      this.used -= weight;
+      toWake = takeWaiting();
+    }
+    wake(toWake);
+  }
+
+  private List<JobControl> takeWaiting() {
+    List<JobControl> retv = new ArrayList<JobControl>(this.waiting);
+    this.waiting.clear();
+    return retv;
+  }
+
+  private static void wake(List<JobControl> groups) {
+    for (JobControl group : groups) {
+      group.wakeUp();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "pool " + this.name + " (" + getUsed() + "/" + getCapacity() + ")";
+  }
+
+}
@@ -0,0 +1,125 @@
+package kdp.jobcontrol;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.mapred.FileAlreadyExistsException;
+import org.apache.hadoop.mapred.InvalidJobConfException;
+
+/**
+ * How often, and how soon, a job is tried again after a transient failure.
+ *
+ * Two kinds of failures are retried. A failed status check leaves the job
+ * running and is simply repeated after a backoff. A failed submission, or a
+ * job that failed on the cluster if so configured, sends the job back to
+ * READY; it is then submitted afresh once its backoff has passed. Both
+ * count up to the same maximum number of attempts, separately.
+ *
+ * The backoff doubles with each failure, from the initial delay up to the
+ * maximum, less a random share of up to half of it so that jobs failing
+ * together do not retry together.
+ */
+public class RetryPolicy {
+
+  /**
+   * Decides whether a failure is worth retrying.
+   */
+  public interface Filter {
+    /**
+     * @param cause
+     *          the exception the attempt failed with
+     * @return true if another attempt may succeed
+     */
+    boolean isRetryable(Throwable cause);
+  }
+
+  /**
+   * Retries I/O failures, such as lost connections to the job tracker, but
+   * not a job rejected for its configuration or an output that already
+   * exists, which fail again the same way.
+   */
+  public static final Filter IO_EXCEPTIONS = new Filter() {
+    public boolean isRetryable(Throwable cause) {
+      return cause instanceof IOException
+          && !(cause instanceof FileAlreadyExistsException)
+          && !(cause instanceof InvalidJobConfException);
+    }
+  };
+
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private Filter retryable = IO_EXCEPTIONS;
+  private boolean resubmitFailedJobs;
+  private final Random random = new Random();
+
+  /**
+   * @param maxAttempts
+   *          the number of attempts, including the first one
+   * @param initialBackoffMillis
+   *          the delay before the first retry
+   * @param maxBackoffMillis
+   *          the longest delay between two attempts
+   */
+  public RetryPolicy(int maxAttempts, long initialBackoffMillis,
+      long maxBackoffMillis) {
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+  }
+
+  public int getMaxAttempts() {
+    return this.maxAttempts;
+  }
+
+  /**
+   * Set which exceptions are retried; by default, I/O exceptions.
+   */
+  public void setRetryable(Filter retryable) {
+    this.retryable = retryable;
+  }
+
+  /**
+   * Also resubmit jobs that failed on the cluster, rather than only those
+   * whose submission or status checks failed. Off by default, as most
+   * such failures happen again.
+   */
+  public void setResubmitFailedJobs(boolean resubmit) {
+    this.resubmitFailedJobs = resubmit;
+  }
+
+  /**
+   * @param failures
+   *          the number of attempts that failed so far
+   * @param cause
+   *          the exception the last attempt failed with, or null if the job
+   *          itself failed
+   * @return true if the job should be tried again
+   */
+  public boolean shouldRetry(int failures, Throwable cause) {
+    if (failures >= this.maxAttempts) {
+      return false;
+    }
+    return cause == null ? this.resubmitFailedJobs : this.retryable
+        .isRetryable(cause);
+  }
+
+  /**
+   * @param failures
+   *          the number of attempts that failed so far, at least one
+   * @return the delay before the next attempt
+   */
+  public long getDelayMillis(int failures) {
+    long backoff = this.initialBackoffMillis;
+    for (int i = 1; i < failures && backoff < this.maxBackoffMillis; i++) {
+      backoff *= 2;
+    }
+    backoff = Math.min(backoff, this.maxBackoffMillis);
+    double jitter;
+    synchronized (this.random) {
+      jitter = this.random.nextDouble() / 2;
+    }
+    return (long) (backoff * (1 - jitter));
+  }
+
+}
@@ -0,0 +1,164 @@
+package kdp.jobcontrol;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import kdp.jobcontrol.Controlled.State;
+
+/**
+ * A local, append-only record of how long jobs took, keyed by
+ * {@link Controlled#getKey()}, which is stable from one run to the next;
+ * jobs without a key are left out. Each completed job adds one
+ * tab-separated line to the file:
+ *
+ * <pre>
+ * finish time, key, final state, queue wait, submit latency, run time
+ * </pre>
+ *
+ * with times in milliseconds. Estimates are the mean of the last few
+ * successful runs of a key. The file is read back when the history is
+ * opened, so estimates carry over from one run of a flow to the next, and
+ * one history can be shared by several JobControl groups.
+ */
+public class RuntimeHistory {
+
+  private static final int SAMPLES = 5;
+
+  private final File file;
+  private Writer out;
+  // per key, the queue wait, submit latency and run time of recent runs
+  private final Map<String, LinkedList<long[]>> runs;
+
+  /**
+   * Open a history, reading the runs already recorded in the file.
+   *
+   * @param file
+   *          the history file, created if it does not exist
+   */
+  public RuntimeHistory(File file) throws IOException {
+    this.file = file;
+    this.runs = new HashMap<String, LinkedList<long[]>>();
+    if (file.exists()) {
+      load();
+    }
+    this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+        file, true), "UTF-8"));
+  }
+
+  private void load() throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(this.file), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] fields = line.split("\t");
+        if (fields.length != 6) {
+          continue; // torn write at the end of a crashed run
+        }
+        try {
+          if (State.valueOf(fields[2]) == State.SUCCESS) {
+            addRun(fields[1], Long.parseLong(fields[3]), Long
+                .parseLong(fields[4]), Long.parseLong(fields[5]));
+          }
+        } catch (IllegalArgumentException e) {
+          continue;
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void addRun(String name, long queueWait, long submit, long run) {
+    LinkedList<long[]> recent = this.runs.get(name);
+    if (recent == null) {
+      recent = new LinkedList<long[]>();
+      this.runs.put(name, recent);
+    }
+    recent.addLast(new long[] { queueWait, submit, run });
+    if (recent.size() > SAMPLES) {
+      recent.removeFirst();
+    }
+  }
+
+  /**
+   * Append a completed job to the history.
+   *
+   * @param key
+   *          the key of the job
+   * @param outcome
+   *          the state the job finished in
+   * @param queueWaitMillis
+   *          time from READY to the start of its submission
+   * @param submitMillis
+   *          time taken to submit it
+   * @param runMillis
+   *          time from the end of its submission to its completion
+   */
+  public synchronized void record(String key, State outcome,
+      long queueWaitMillis, long submitMillis, long runMillis)
+      throws IOException {
+    if (this.out == null) {
+      throw new IOException("history " + this.file + " is closed");
+    }
+    key = key.replace('\t', ' ').replace('\n', ' ');
+    this.out.write(System.currentTimeMillis() + "\t" + key + "\t" + outcome
+        + "\t" + queueWaitMillis + "\t" + submitMillis + "\t" + runMillis
+        + "\n");
+    this.out.flush();
+    if (outcome == State.SUCCESS) {
+      addRun(key, queueWaitMillis, submitMillis, runMillis);
+    }
+  }
+
+  /**
+   * @param key
+   *          the key of a job
+   * @return the expected run time of the job, or -1 if it never succeeded
+   */
+  public synchronized long getEstimatedRunMillis(String key) {
+    return mean(key, 2);
+  }
+
+  /**
+   * @param key
+   *          the key of a job
+   * @return the expected time from the job becoming READY to its completion,
+   *         or -1 if it never succeeded
+   */
+  public synchronized long getEstimatedTotalMillis(String key) {
+    long run = mean(key, 2);
+    return run < 0 ? -1 : mean(key, 0) + mean(key, 1) + run;
+  }
+
+  private long mean(String key, int field) {
+    LinkedList<long[]> recent = this.runs.get(key.replace('\t', ' ')
+        .replace('\n', ' '));
+    if (recent == null || recent.isEmpty()) {
+      return -1;
+    }
+    long total = 0;
+    for (long[] run : recent) {
+      total += run[field];
+    }
+    return total / recent.size();
+  }
+
+  public synchronized void close() throws IOException {
+    if (this.out != null) {
+      this.out.close();
+      this.out = null;
+    }
+  }
+
+}
@@ -0,0 +1,70 @@
+package kdp.jobcontrol;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kdp.jobcontrol.Controlled.State;
+
+/**
+ * Delivers state transitions to the listeners of a JobControl on a single
+ * thread, through a bounded queue. When the listeners fall behind and the
+ * queue fills up, further transitions are dropped and counted rather than
+ * stalling the JobControl thread. The thread exits after a minute without
+ * events.
+ */
+class StateChangeDispatcher {
+
+  private static final int QUEUE_SIZE = 16384;
+
+  private final List<JobStateListener> listeners;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong dropped = new AtomicLong();
+
+  StateChangeDispatcher(String name) {
+    this.listeners = new CopyOnWriteArrayList<JobStateListener>();
+    this.executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), new DaemonThreadFactory(
+            "JobControl " + name + " listeners"),
+        new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+            dropped.incrementAndGet();
+          }
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  void addListener(JobStateListener listener) {
+    this.listeners.add(listener);
+  }
+
+  void removeListener(JobStateListener listener) {
+    this.listeners.remove(listener);
+  }
+
+  long getDroppedCount() {
+    return this.dropped.get();
+  }
+
+  void fire(final Controlled job, final State oldState, final State newState) {
+    if (this.listeners.isEmpty()) {
+      return;
+    }
+    this.executor.execute(new Runnable() {
+      public void run() {
+        for (JobStateListener listener : listeners) {
+          try {
+            listener.stateChanged(job, oldState, newState);
+          } catch (RuntimeException e) {
+            e.printStackTrace();
+          }
+        }
+      }
+    });
+  }
+
+}
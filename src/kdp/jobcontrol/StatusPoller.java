@@ -0,0 +1,186 @@
+package kdp.jobcontrol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import kdp.jobcontrol.Controlled.State;
+
+/**
+ * Checks the state of running jobs for a JobControl. Due jobs are checked
+ * in parallel on a bounded pool, and each job is polled less often the
+ * longer it has been running: a job is next polled after a tenth of its
+ * age, kept between the minimum and maximum poll intervals.
+ */
+class StatusPoller {
+
+  private static final int AGE_DIVISOR = 10;
+
+  private final String name;
+  private int threads;
+  private long minIntervalMillis;
+  private long maxIntervalMillis;
+  private ExecutorService pool;
+  private boolean ownPool;
+  // check jobs one after the other on the calling thread
+  private boolean inline;
+
+  private final Map<Controlled, Long> firstSeen;
+  private final Map<Controlled, Long> nextPoll;
+
+  StatusPoller(String name, int threads, long minIntervalMillis,
+      long maxIntervalMillis) {
+    this.name = name;
+    this.threads = threads;
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.firstSeen = new ConcurrentHashMap<Controlled, Long>();
+    this.nextPoll = new ConcurrentHashMap<Controlled, Long>();
+  }
+
+  synchronized void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+   * Check jobs on a pool shared with other groups, which is not shut down
+   * with this poller.
+   */
+  synchronized void setExecutor(ExecutorService executor) {
+    this.pool = executor;
+    this.ownPool = false;
+  }
+
+  /**
+   * Check jobs on the thread calling {@link #poll(Collection)}, as for a
+   * nested group, which must not take threads of its own nor wait on a
+   * pool that the thread polling it may belong to.
+   */
+  synchronized void setInline(boolean inline) {
+    this.inline = inline;
+  }
+
+  synchronized void setIntervals(long minIntervalMillis,
+      long maxIntervalMillis) {
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = Math.max(minIntervalMillis, maxIntervalMillis);
+  }
+
+  /**
+   * Make a job due on the next poll, regardless of its backoff.
+   */
+  void pollSoon(Controlled job) {
+    if (this.nextPoll.containsKey(job)) {
+      this.nextPoll.put(job, 0L);
+    }
+  }
+
+  /**
+   * Check the state of those running jobs that are due.
+   *
+   * @param running the jobs currently in the RUNNING queue
+   * @return the jobs that are no longer running
+   */
+  List<Controlled> poll(Collection<Controlled> running) throws IOException,
+      InterruptedException {
+    long now = System.currentTimeMillis();
+    List<Callable<Controlled>> due = new ArrayList<Callable<Controlled>>();
+    for (final Controlled job : running) {
+      Long next = this.nextPoll.get(job);
+      if (next == null) {
+        this.firstSeen.put(job, now);
+        next = now;
+        this.nextPoll.put(job, next);
+      }
+      if (next > now && !(job instanceof ControlledWorkflow)) {
+        continue; // nested groups back off per job of their own
+      }
+      if (job.getRetryAt() > now) {
+        continue; // backing off after a failed status check
+      }
+      due.add(new Callable<Controlled>() {
+        public Controlled call() throws Exception {
+          job.checkState();
+          return job;
+        }
+      });
+    }
+
+    List<Controlled> changed = new ArrayList<Controlled>();
+    if (due.isEmpty()) {
+      return changed;
+    }
+    List<Future<Controlled>> results;
+    if (isInline()) {
+      results = new ArrayList<Future<Controlled>>();
+      for (Callable<Controlled> check : due) {
+        FutureTask<Controlled> result = new FutureTask<Controlled>(check);
+        result.run();
+        results.add(result);
+      }
+    } else {
+      results = getPool().invokeAll(due);
+    }
+    now = System.currentTimeMillis();
+    IOException failure = null;
+    for (Future<Controlled> result : results) {
+      Controlled job;
+      try {
+        job = result.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof IOException ? (IOException) e
+              .getCause() : new IOException(e.getCause().toString());
+        }
+        continue;
+      }
+      if (job.getJobState() != State.RUNNING) {
+        this.firstSeen.remove(job);
+        this.nextPoll.remove(job);
+        changed.add(job);
+      } else {
+        this.nextPoll.put(job, now + interval(now - this.firstSeen.get(job)));
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return changed;
+  }
+
+  private synchronized long interval(long ageMillis) {
+    return Math.min(this.maxIntervalMillis, Math.max(this.minIntervalMillis,
+        ageMillis / AGE_DIVISOR));
+  }
+
+  private synchronized boolean isInline() {
+    return this.inline;
+  }
+
+  private synchronized ExecutorService getPool() {
+    if (this.pool == null) {
+      this.pool = Executors.newFixedThreadPool(Math.max(1, this.threads),
+          new DaemonThreadFactory("JobControl " + this.name + " poller"));
+      this.ownPool = true;
+    }
+    return this.pool;
+  }
+
+  synchronized void shutdown() {
+    if (this.ownPool) {
+      this.pool.shutdown();
+      this.pool = null;
+      this.ownPool = false;
+    }
+  }
+
+}
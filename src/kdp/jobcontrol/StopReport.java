@@ -0,0 +1,86 @@
+package kdp.jobcontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What became of the jobs of a group when it was stopped.
+ */
+public class StopReport {
+
+  private final List<Controlled> killed = new ArrayList<Controlled>();
+  private final List<Controlled> notKilled = new ArrayList<Controlled>();
+  private final List<Controlled> stillRunning = new ArrayList<Controlled>();
+  private final List<Controlled> notStarted = new ArrayList<Controlled>();
+  private boolean stopped;
+
+  synchronized void addKilled(Controlled job) {
+    this.killed.add(job);
+  }
+
+  synchronized void addNotKilled(Controlled job) {
+    this.notKilled.add(job);
+  }
+
+  synchronized void addStillRunning(Controlled job) {
+    this.stillRunning.add(job);
+  }
+
+  synchronized void addNotStarted(Controlled job) {
+    this.notStarted.add(job);
+  }
+
+  synchronized void setStopped(boolean stopped) {
+    this.stopped = stopped;
+  }
+
+  /**
+   * @return the running jobs that were killed, whose resources were reclaimed
+   */
+  public synchronized List<Controlled> getKilledJobs() {
+    return Collections.unmodifiableList(new ArrayList<Controlled>(this.killed));
+  }
+
+  /**
+   * @return the running jobs whose kill failed or did not finish in time,
+   *         which may still hold resources
+   */
+  public synchronized List<Controlled> getNotKilledJobs() {
+    return Collections.unmodifiableList(new ArrayList<Controlled>(
+        this.notKilled));
+  }
+
+  /**
+   * @return the jobs still running, left to finish by a graceful stop that
+   *         timed out
+   */
+  public synchronized List<Controlled> getStillRunningJobs() {
+    return Collections.unmodifiableList(new ArrayList<Controlled>(
+        this.stillRunning));
+  }
+
+  /**
+   * @return the jobs that had not been submitted and never will be
+   */
+  public synchronized List<Controlled> getNotStartedJobs() {
+    return Collections.unmodifiableList(new ArrayList<Controlled>(
+        this.notStarted));
+  }
+
+  /**
+   * @return true if the group stopped within the timeout
+   */
+  public synchronized boolean isStopped() {
+    return this.stopped;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return (this.stopped ? "stopped" : "still stopping") + ": "
+        + this.killed.size() + " killed, " + this.notKilled.size()
+        + " not killed, " + this.stillRunning.size() + " still running, "
+        + this.notStarted.size() + " not started";
+  }
+
+}
@@ -0,0 +1,70 @@
+package kdp.jobcontrol;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Deletes directories in the background, one at a time, so that jobs
+ * retiring old data do not wait for the deletes to finish.
+ *
+ * The reaper thread is a daemon, so deletes still pending when the JVM
+ * exits are lost; clients that exit straight after their workflow should
+ * call {@link #awaitIdle(long)}.
+ */
+public class TrashReaper {
+
+  private static final ExecutorService REAPER = Executors
+      .newSingleThreadExecutor(new DaemonThreadFactory("TrashReaper"));
+
+  private TrashReaper() {
+  }
+
+  /**
+   * Queue a path for recursive deletion. Failures are logged and ignored.
+   */
+  public static void reap(final FileSystem fs, final Path path) {
+    REAPER.execute(new Runnable() {
+      public void run() {
+        try {
+          System.out.println("Reaping " + path);
+          fs.delete(path, true);
+        } catch (IOException e) {
+          System.out.println("Failed to reap " + path);
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait for the deletes queued so far to finish.
+   *
+   * @param timeoutMillis the longest time to wait
+   * @return true if they all finished in time
+   */
+  public static boolean awaitIdle(long timeoutMillis)
+      throws InterruptedException {
+    try {
+      // deletes run in order, so this runs once the earlier ones are done
+      REAPER.submit(new Callable<Void>() {
+        public Void call() {
+          return null;
+        }
+      }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (ExecutionException e) {
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    }
+  }
+
+}
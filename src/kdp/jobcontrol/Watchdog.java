@@ -0,0 +1,127 @@
+package kdp.jobcontrol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import kdp.jobcontrol.Controlled.State;
+
+/**
+ * Finds the running jobs of a group that have run for too long, or made no
+ * progress for too long. Deadlines are kept in a priority queue, so a check
+ * costs nothing but a look at the earliest one until it is due; a job's
+ * progress is only asked for when its no-progress deadline comes up.
+ */
+class Watchdog {
+
+  private static class Deadline implements Comparable<Deadline> {
+    final Controlled job;
+    final long startedAt;
+    final long due;
+    final boolean progress;
+    final float lastProgress;
+
+    Deadline(Controlled job, long startedAt, long due, boolean progress,
+        float lastProgress) {
+      this.job = job;
+      this.startedAt = startedAt;
+      this.due = due;
+      this.progress = progress;
+      this.lastProgress = lastProgress;
+    }
+
+    public int compareTo(Deadline o) {
+      return due < o.due ? -1 : (due == o.due ? 0 : 1);
+    }
+  }
+
+  private final PriorityQueue<Deadline> deadlines;
+  // when each watched job started running; deadlines of earlier runs are stale
+  private final Map<Controlled, Long> started;
+
+  Watchdog() {
+    this.deadlines = new PriorityQueue<Deadline>();
+    this.started = new HashMap<Controlled, Long>();
+  }
+
+  /**
+   * Start watching a job that has just started running, if it has a
+   * timeout.
+   */
+  synchronized void watch(Controlled job, long now) {
+    if (job.getTimeoutMillis() <= 0 && job.getProgressTimeoutMillis() <= 0) {
+      return;
+    }
+    this.started.put(job, now);
+    if (job.getTimeoutMillis() > 0) {
+      this.deadlines.add(new Deadline(job, now, now + job.getTimeoutMillis(),
+          false, 0));
+    }
+    if (job.getProgressTimeoutMillis() > 0) {
+      this.deadlines.add(new Deadline(job, now, now
+          + job.getProgressTimeoutMillis(), true, 0));
+    }
+  }
+
+  /**
+   * Stop watching a job that is no longer running.
+   */
+  synchronized void unwatch(Controlled job) {
+    this.started.remove(job);
+  }
+
+  /**
+   * @return the jobs whose timeout has expired, each with the reason set as
+   *         its message; they are no longer watched
+   */
+  List<Controlled> expired(long now) {
+    List<Deadline> due = new ArrayList<Deadline>();
+    synchronized (this) {
+      while (!this.deadlines.isEmpty() && this.deadlines.peek().due <= now) {
+        Deadline deadline = this.deadlines.poll();
+        Long startedAt = this.started.get(deadline.job);
+        if (startedAt != null && startedAt == deadline.startedAt
+            && deadline.job.getJobState() == State.RUNNING) {
+          due.add(deadline);
+        }
+      }
+    }
+    List<Controlled> expired = new ArrayList<Controlled>();
+    for (Deadline deadline : due) {
+      Controlled job = deadline.job;
+      String reason;
+      if (!deadline.progress) {
+        reason = "timed out after running for " + job.getTimeoutMillis()
+            + " ms";
+      } else {
+        float progress;
+        try {
+          progress = job.getProgress();
+        } catch (IOException e) {
+          progress = deadline.lastProgress; // counts as no progress
+        }
+        if (progress < 0 || progress > deadline.lastProgress) {
+          synchronized (this) {
+            this.deadlines.add(new Deadline(job, deadline.startedAt, now
+                + job.getProgressTimeoutMillis(), true, progress));
+          }
+          continue;
+        }
+        reason = "timed out after no progress for "
+            + job.getProgressTimeoutMillis() + " ms";
+      }
+      synchronized (this) {
+        if (this.started.remove(job) == null) {
+          continue; // both deadlines expired at once
+        }
+      }
+      job.setMessage(reason);
+      expired.add(job);
+    }
+    return expired;
+  }
+
+}
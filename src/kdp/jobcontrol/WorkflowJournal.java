@@ -0,0 +1,264 @@
+package kdp.jobcontrol;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import kdp.jobcontrol.Controlled.State;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A durable record of the state transitions of a workflow, used to resume
+ * it after a failure without rerunning the jobs that already succeeded.
+ *
+ * The journal is a directory, on the local file system or HDFS. Each run
+ * appends to a new segment file in it, so no file is ever reopened for
+ * append. Transitions are buffered as they are recorded, and written and
+ * synced by {@link #flush()}, which the group calls after each pass outside
+ * its lock; a crash loses at most the transitions of the last pass, whose
+ * jobs are then simply run again. Opening a journal reads all earlier
+ * segments; the last state recorded for a job key wins. Once every job of
+ * the workflow has succeeded, the segments are deleted by
+ * {@link #complete()}, so that the next run starts from scratch.
+ *
+ * Jobs are identified by their key (see {@link Controlled#getKey()}), which
+ * must be unique within the workflow and the same from one run to the next.
+ * The counters of successful MapReduce jobs are journaled too, so that jobs
+ * requiring them can still be run when resuming.
+ */
+public class WorkflowJournal {
+
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String COUNTER = "COUNTER";
+
+  private final FileSystem fs;
+  private final Path dir;
+  private final Map<String, State> states;
+  // per job key, counter values keyed by group and name
+  private final Map<String, Map<String, Long>> counters;
+  private FSDataOutputStream out;
+  // records not written yet
+  private StringBuilder pending = new StringBuilder();
+  // held while writing, so that flushes keep records in order
+  private final Object writeLock = new Object();
+
+  public WorkflowJournal(Configuration conf, Path dir) throws IOException {
+    this(dir.getFileSystem(conf), dir);
+  }
+
+  /**
+   * Open a journal, reading the transitions recorded by earlier runs.
+   *
+   * @param fs
+   *          the file system holding the journal
+   * @param dir
+   *          the journal directory, created if it does not exist
+   */
+  public WorkflowJournal(FileSystem fs, Path dir) throws IOException {
+    this.fs = fs;
+    this.dir = dir;
+    this.states = new HashMap<String, State>();
+    this.counters = new HashMap<String, Map<String, Long>>();
+    load();
+  }
+
+  /**
+   * @return the segments of the journal, oldest first
+   */
+  private List<Path> listSegments() throws IOException {
+    List<Path> paths = new ArrayList<Path>();
+    FileStatus[] segments;
+    try {
+      segments = this.fs.listStatus(this.dir);
+    } catch (FileNotFoundException e) {
+      segments = null;
+    }
+    if (segments == null) {
+      return paths; // Hadoop 1 returns null for a missing directory
+    }
+    for (FileStatus segment : segments) {
+      if (segment.getPath().getName().startsWith(SEGMENT_PREFIX)) {
+        paths.add(segment.getPath());
+      }
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  private void load() throws IOException {
+    for (Path path : listSegments()) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(this.fs
+          .open(path), "UTF-8"));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          String[] fields = line.split("\t");
+          try {
+            if (fields.length == 3) {
+              this.states.put(fields[1], State.valueOf(fields[2]));
+            } else if (fields.length == 6 && fields[2].equals(COUNTER)) {
+              putCounter(fields[1], fields[3], fields[4], Long
+                  .parseLong(fields[5]));
+            }
+            // anything else is a torn write at the end of a crashed run
+          } catch (IllegalArgumentException e) {
+            continue;
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * @param key
+   *          the key of a job
+   * @return the last state recorded for the job, or null if none was
+   */
+  public synchronized State getState(String key) {
+    return this.states.get(clean(key));
+  }
+
+  /**
+   * @param key
+   *          the key of a job
+   * @return true if the job succeeded in an earlier run and has not been
+   *         recorded in another state since
+   */
+  public synchronized boolean hasSucceeded(String key) {
+    return this.states.get(clean(key)) == State.SUCCESS;
+  }
+
+  /**
+   * @param key
+   *          the key of a job
+   * @return the counters journaled for the job, keyed by group and name as
+   *         returned by {@link ControlledJob#counterKey(String, String)}, or
+   *         null if none were
+   */
+  public synchronized Map<String, Long> getCounters(String key) {
+    return this.counters.get(clean(key));
+  }
+
+  /**
+   * Append a state transition, written by the next {@link #flush()}.
+   */
+  public synchronized void record(String key, State state) throws IOException {
+    key = clean(key);
+    this.pending.append(System.currentTimeMillis()).append('\t').append(key)
+        .append('\t').append(state).append('\n');
+    this.states.put(key, state);
+  }
+
+  /**
+   * Append the counters of a job, written by the next {@link #flush()}.
+   */
+  synchronized void recordCounters(String key, CounterValues jobCounters)
+      throws IOException {
+    key = clean(key);
+    StringBuilder sb = new StringBuilder();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < jobCounters.size(); i++) {
+      String group = clean(jobCounters.getGroupName(i));
+      String name = clean(jobCounters.getCounterName(i));
+      sb.append(now).append('\t').append(key).append('\t').append(COUNTER)
+          .append('\t').append(group).append('\t').append(name).append('\t')
+          .append(jobCounters.getValue(i)).append('\n');
+      putCounter(key, group, name, jobCounters.getValue(i));
+    }
+    this.pending.append(sb);
+  }
+
+  private void putCounter(String key, String group, String name, long value) {
+    Map<String, Long> values = this.counters.get(key);
+    if (values == null) {
+      values = new HashMap<String, Long>();
+      this.counters.put(key, values);
+    }
+    values.put(ControlledJob.counterKey(group, name), value);
+  }
+
+  /**
+   * Write the records appended since the last flush, and sync them to the
+   * file system.
+   */
+  public void flush() throws IOException {
+    synchronized (this.writeLock) {
+      String lines;
+      synchronized (this) {
+        if (this.pending.length() == 0) {
+          return;
+        }
+        lines = this.pending.toString();
+        this.pending = new StringBuilder();
+      }
+      try {
+        write(lines);
+      } catch (IOException e) {
+        synchronized (this) {
+          this.pending.insert(0, lines); // tried again on the next flush
+        }
+        throw e;
+      }
+    }
+  }
+
+  private void write(String lines) throws IOException {
+    if (this.out == null) {
+      // sortable by time, so segments are replayed in the order written
+      this.out = this.fs.create(new Path(this.dir, String.format("%s%015d",
+          SEGMENT_PREFIX, System.currentTimeMillis())), false);
+    }
+    this.out.write(lines.getBytes("UTF-8"));
+    this.out.sync();
+  }
+
+  private static String clean(String key) {
+    return key.replace('\t', ' ').replace('\n', ' ');
+  }
+
+  public void close() throws IOException {
+    synchronized (this.writeLock) {
+      flush();
+      if (this.out != null) {
+        this.out.close();
+        this.out = null;
+      }
+    }
+  }
+
+  /**
+   * End the journal of a workflow whose jobs have all succeeded: close it
+   * and delete its segments, so that running the workflow again with the
+   * same journal runs every job instead of resuming.
+   */
+  public void complete() throws IOException {
+    synchronized (this.writeLock) {
+      synchronized (this) {
+        this.pending = new StringBuilder();
+        this.states.clear();
+        this.counters.clear();
+      }
+      if (this.out != null) {
+        this.out.close();
+        this.out = null;
+      }
+      for (Path path : listSegments()) {
+        this.fs.delete(path, false);
+      }
+    }
+  }
+
+}
@@ -37,6 +37,11 @@ public class EasyKeywords {
         .get(Calendar.HOUR_OF_DAY), date.get(Calendar.MINUTE));
     String input = myArgs[0];
     String output = myArgs[1];
+    if (myArgs.length > 2) {
+      // resumable: skip what succeeded last time, so keep the batch name too
+      batch = output + "_batch";
+      control.setJournal(new WorkflowJournal(conf, new Path(myArgs[2])));
+    }
     String counts = batch + "/counts";
     String normalized = batch + "/norm";
     String weighted = batch + "/weighted";
@@ -44,6 +49,7 @@ public class EasyKeywords {
     EasyMapReduce wordcount = new EasyMapReduce()
       .withName("word count")
       .withJarForClass(EasyKeywords.class)
+      .withAutoTuning()
       .withMapOutputKeyValue(Text.class, IntWritable.class)
       .withCombiner(Collect.class)
       .withMapper(Count.class)
@@ -51,6 +57,7 @@ public class EasyKeywords {
       .withFileInput(input)
       .withInputFormat(TextInputFormat.class)
       .withFileOutput(counts)
+      .asIntermediate()
       .withOutputFormat(SequenceFileOutputFormat.class)
       .withOutputKeyValue(Text.class, IntWritable.class);
     control.addJob(wordcount);
@@ -61,14 +68,17 @@ public class EasyKeywords {
       .withName("normalize counts")
       .withJarForClass(EasyKeywords.class)
       .withMapper(Normalize.class)
+      // a single file, as extract reads part-r-00000
       .withNumReduceTasks(1)
       .withFileInput(counts)
       .withFileOutput(normalized)
+      .asIntermediate()
       .withMapOutputKeyValue(Text.class, DoubleWritable.class)
       .withInputFormat(SequenceFileInputFormat.class)
       .withOutputFormat(SequenceFileOutputFormat.class)
       .withOutputKeyValue(Text.class, DoubleWritable.class)
-      .withDependingJob(wordcount)
+      .withDependingJob(wordcount,
+                        ControlledJob.counterAtLeast("words", "all", 1))
       .withCounter(wordcount, "words", "all", Normalize.PROP_KEYWORDS_TOTAL);
     System.out.println("Normalizing counts to " + normalized);
     control.addJob(normalize);
@@ -80,6 +90,7 @@ public class EasyKeywords {
       .withJarForClass(KeywordJobControl.class)
       .withMapper(Weighted.class)
       .withNumReduceTasks(1)
+      .withAutoTuning()
       .withFileInput(input)
       .withFileOutput(weighted)
       .withOutputKeyValue(Text.class, Text.class)
@@ -87,28 +98,15 @@ public class EasyKeywords {
     System.out.println("Extracting top keyword to " + weighted);
     control.addJob(extract);
 
-    // move old output to a temp location
-    ControlledFSAction moveOldAside = new OptionalRename(conf, output, output + "_old");
-    moveOldAside.addDependingJob(extract);
-    control.addJob(moveOldAside);
-
-    // move new stuff to final location
-    ControlledFSAction moveOutput = new ControlledFSRename(conf, weighted, output);
-    moveOutput.addDependingJob(moveOldAside);
-    control.addJob(moveOutput);
-
-    // delete batch
-    ControlledFSAction deleteTemp = new ControlledFSDelete(conf, batch, true);
-    deleteTemp.addDependingJob(moveOutput);
-    control.addJob(deleteTemp);
-
-    // delete old output
-    ControlledFSAction deleteOld = new OptionalDelete(conf, output + "_old", true);
-    deleteOld.addDependingJob(moveOutput);
-    control.addJob(deleteOld);
+    // swap the new output in; the old output and the batch are deleted in
+    // the background
+    ControlledFSAction publish = new ControlledPublish(conf, weighted, output, batch);
+    publish.addDependingJob(extract);
+    control.addJob(publish);
 
     // added thread handling to parent class for this simple use
     control.waitForCompletion(50);
+    TrashReaper.awaitIdle(60000);
   }
 
 }
@@ -37,6 +37,11 @@ public class KeywordJobControl {
         .get(Calendar.HOUR_OF_DAY), date.get(Calendar.MINUTE));
     String input = myArgs[0];
     String output = myArgs[1];
+    if (myArgs.length > 2) {
+      // resumable: skip what succeeded last time, so keep the batch name too
+      batch = output + "_batch";
+      control.setJournal(new WorkflowJournal(conf, new Path(myArgs[2])));
+    }
     String counts = batch + "/counts";
     String normalized = batch + "/norm";
     String weighted = batch + "/weighted";
@@ -55,6 +60,7 @@ public class KeywordJobControl {
     wordcount.setOutputKeyClass(Text.class);
     wordcount.setOutputValueClass(IntWritable.class);
     ControlledJob wordcountControl = new ControlledJob(wordcount, null);
+    wordcountControl.setIntermediate(true);
     control.addJob(wordcountControl);
     System.out.println("Counting words to " + counts);
 
@@ -72,7 +78,10 @@ public class KeywordJobControl {
     normalize.setOutputKeyClass(Text.class);
     normalize.setOutputValueClass(DoubleWritable.class);
     ControlledJob normControl = new ControlledJob(normalize, null);
-    normControl.addDependingJob(wordcountControl);
+    normControl.setIntermediate(true);
+    // nothing to normalize, extract or publish if no word was counted
+    normControl.addDependingJob(wordcountControl,
+        ControlledJob.counterAtLeast("words", "all", 1));
     // Not supported in upstream version, I pass the total value to the next job in the chain
     normControl.requireCounter(wordcountControl, "words", "all",
         Normalize.PROP_KEYWORDS_TOTAL);
@@ -96,28 +105,15 @@ public class KeywordJobControl {
     System.out.println("Extracting top keyword to " + weighted);
     control.addJob(extractControl);
 
-    // move old output to a temp location
-    ControlledFSAction moveOldAside = new OptionalRename(conf, output, output + "_old");
-    moveOldAside.addDependingJob(extractControl);
-    control.addJob(moveOldAside);
-
-    // move new stuff to final location
-    ControlledFSAction moveOutput = new ControlledFSRename(conf, weighted, output);
-    moveOutput.addDependingJob(moveOldAside);
-    control.addJob(moveOutput);
-
-    // delete batch
-    ControlledFSAction deleteTemp = new ControlledFSDelete(conf, batch, true);
-    deleteTemp.addDependingJob(moveOutput);
-    control.addJob(deleteTemp);
-
-    // delete old output
-    ControlledFSAction deleteOld = new OptionalDelete(conf, output + "_old", true);
-    deleteOld.addDependingJob(moveOutput);
-    control.addJob(deleteOld);
+    // swap the new output in; the old output and the batch are deleted in
+    // the background
+    ControlledFSAction publish = new ControlledPublish(conf, weighted, output, batch);
+    publish.addDependingJob(extractControl);
+    control.addJob(publish);
 
     // added thread handling to parent class for this simple use
     control.waitForCompletion(50);
+    TrashReaper.awaitIdle(60000);
   }
 
 }